@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.benchmark;
+
+import com.engdev.blockdiagramdetector.imageprocessing.CannyEdgeDetector;
+import com.engdev.blockdiagramdetector.imageprocessing.CannyEdgeDetector.PipelineMode;
+import com.engdev.blockdiagramdetector.imageprocessing.CannyWorkspace;
+import com.engdev.blockdiagramdetector.imageprocessing.PlanarImage;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times the CannyEdgeDetector over synthetic block diagrams of 1 to 16 megapixels, in both
+ * pipeline modes, serial and in parallel. Frames go in as planar images, so no Bitmap is built
+ * and the driver runs on a desktop JVM. It lives out of src so it is not packaged with the app;
+ * compile it with src on the source path and android.jar on the class path:
+ * <p/>
+ * javac -cp android.jar -sourcepath src -d out benchmark/com/engdev/blockdiagramdetector/benchmark/CannyBenchmark.java
+ * <p/>
+ * java -cp out com.engdev.blockdiagramdetector.benchmark.CannyBenchmark [runs] [megapixels...]
+ * <p/>
+ * Each time is the best of the runs, with a workspace reused between them as the app does. The
+ * parallel edge maps are checked against the serial ones of the same mode, which they must equal.
+ *
+ * @author Lucas Batista
+ */
+public class CannyBenchmark {
+
+    private final static int[] MEGAPIXELS = {1, 4, 9, 16};
+    private final static int RUNS = 5;
+    private final static float SIGMA = 1.5F;
+
+    // Color the detector gives edge pixels
+    private final static int EDGE = 0xFFFFFFFF;
+
+    public static void main(String[] args) {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : RUNS;
+        int[] megapixels = MEGAPIXELS;
+        if (args.length > 1) {
+            megapixels = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                megapixels[i - 1] = Integer.parseInt(args[i]);
+        }
+        int parallelism = Runtime.getRuntime().availableProcessors();
+
+        System.out.println("MP\tsize\tfloat\tfloat x" + parallelism + "\tfixed\tfixed x" + parallelism
+                + "\tfixed far\tsame");
+        for (int mp : megapixels) {
+            int width = (int) Math.round(Math.sqrt(mp * 1000000 * 4 / 3.0));
+            int height = mp * 1000000 / width;
+            PlanarImage image = PlanarImage.fromPixels(createDiagram(width, height, mp), width, height,
+                    PlanarImage.Format.Argb);
+
+            Result floatSerial = time(image, PipelineMode.Float, 1, runs);
+            Result floatParallel = time(image, PipelineMode.Float, parallelism, runs);
+            Result fixedSerial = time(image, PipelineMode.FixedPoint, 1, runs);
+            Result fixedParallel = time(image, PipelineMode.FixedPoint, parallelism, runs);
+
+            boolean same = Arrays.equals(floatSerial.edges, floatParallel.edges)
+                    && Arrays.equals(fixedSerial.edges, fixedParallel.edges);
+            System.out.println(mp + "\t" + width + "x" + height
+                    + "\t" + floatSerial.millis + "\t" + floatParallel.millis
+                    + "\t" + fixedSerial.millis + "\t" + fixedParallel.millis
+                    + "\t" + String.format("%.3f%%", 100F * countFar(floatSerial.edges, fixedSerial.edges, width, height)
+                    / (width * height))
+                    + "\t" + same);
+        }
+    }
+
+    private static Result time(PlanarImage image, PipelineMode mode, int parallelism, int runs) {
+        CannyEdgeDetector detector = new CannyEdgeDetector(image);
+        detector.setSigma(SIGMA);
+        detector.setPipelineMode(mode);
+        detector.setParallelism(parallelism);
+        CannyWorkspace workspace = new CannyWorkspace();
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < runs; run++) {
+            long start = System.nanoTime();
+            detector.apply(workspace);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        detector.shutdown();
+        int size = image.getWidth() * image.getHeight();
+        return new Result(best / 1000000, Arrays.copyOf(detector.getPixels(), size));
+    }
+
+    /**
+     * Edge pixels of one map more than a pixel away from any edge of the other, both ways
+     *
+     * @return
+     */
+    private static int countFar(int[] a, int[] b, int width, int height) {
+        return countFarFrom(a, b, width, height) + countFarFrom(b, a, width, height);
+    }
+
+    private static int countFarFrom(int[] from, int[] to, int width, int height) {
+        int far = 0;
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++) {
+                if (from[y * width + x] != EDGE)
+                    continue;
+                boolean near = false;
+                for (int dy = -1; dy <= 1 && !near; dy++)
+                    for (int dx = -1; dx <= 1 && !near; dx++) {
+                        int nx = x + dx;
+                        int ny = y + dy;
+                        near = nx >= 0 && ny >= 0 && nx < width && ny < height
+                                && to[ny * width + nx] == EDGE;
+                    }
+                if (!near)
+                    far++;
+            }
+        return far;
+    }
+
+    /**
+     * White frame with the outlines of boxes and ellipses, connection lines, hatching and salt
+     * noise, one shape per 40000 pixels
+     *
+     * @return ARGB pixels, row major
+     */
+    private static int[] createDiagram(int width, int height, long seed) {
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, 0xFFFFFFFF);
+        Random random = new Random(seed);
+        int shapes = Math.max(4, width * height / 40000);
+        for (int i = 0; i < shapes; i++) {
+            int type = random.nextInt(4);
+            int shapeWidth = 20 + random.nextInt(Math.max(1, width / 6));
+            int shapeHeight = 20 + random.nextInt(Math.max(1, height / 6));
+            int left = 5 + random.nextInt(Math.max(1, width - shapeWidth - 10));
+            int top = 5 + random.nextInt(Math.max(1, height - shapeHeight - 10));
+            int thickness = 1 + random.nextInt(3);
+            int color = 0xFF000000 | (random.nextInt(80) * 0x10101);
+            for (int y = top; y < top + shapeHeight && y < height; y++)
+                for (int x = left; x < left + shapeWidth && x < width; x++)
+                    if (isOnShape(type, x - left, y - top, shapeWidth, shapeHeight, thickness))
+                        pixels[y * width + x] = color;
+        }
+        for (int i = 0; i < width * height / 500; i++)
+            pixels[random.nextInt(width * height)] = 0xFF000000 | (random.nextInt(256) * 0x10101);
+        return pixels;
+    }
+
+    private static boolean isOnShape(int type, int x, int y, int width, int height, int thickness) {
+        switch (type) {
+            case 0:
+                return x < thickness || x >= width - thickness || y < thickness || y >= height - thickness;
+            case 1:
+                double dx = (x - width / 2.0) / (width / 2.0);
+                double dy = (y - height / 2.0) / (height / 2.0);
+                double distance = dx * dx + dy * dy;
+                return distance <= 1 && distance >= 1 - 0.1 * thickness;
+            case 2:
+                return Math.abs(y - height / 2) < thickness;
+            default:
+                return width < 60 && (x / 4 + y / 4) % 3 == 0;
+        }
+    }
+
+    private static final class Result {
+
+        private final long millis;
+        private final int[] edges;
+
+        private Result(long millis, int[] edges) {
+            this.millis = millis;
+            this.edges = edges;
+        }
+    }
+
+}
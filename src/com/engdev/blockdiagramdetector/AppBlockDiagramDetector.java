@@ -279,6 +279,7 @@ public final class AppBlockDiagramDetector implements App, Parcelable {
                 public void onFinish(FinishEvent event) {
 
                     final EdgeMap em = ed.createEdgeMap();
+                    ed.shutdown();
 
                     // Inverts color from canny filter
                     final PointOperationFilter po = new PointOperationFilter(em.createEdgeBitmap(), Operation.Invert);
@@ -9,10 +9,14 @@ package com.engdev.blockdiagramdetector.blockdiagram;
  * the LICENSE.txt file.
  */
 
+import com.engdev.blockdiagramdetector.geometry.Contour;
 import com.engdev.blockdiagramdetector.geometry.GeometricObject;
 import com.engdev.blockdiagramdetector.geometry.GeometricObject.GeometricObjectType;
 import com.engdev.blockdiagramdetector.geometry.GeometricObjectRecognizer;
+import com.engdev.blockdiagramdetector.geometry.Point;
 import com.engdev.blockdiagramdetector.geometry.Region;
+import com.engdev.blockdiagramdetector.imageprocessing.BitEdgeMap;
+import com.engdev.blockdiagramdetector.imageprocessing.ConnectedComponentLabeller;
 import com.engdev.blockdiagramdetector.imageprocessing.EdgeMap;
 import com.engdev.blockdiagramdetector.state.BlockDiagramParserState;
 import com.engdev.blockdiagramdetector.state.BlockDiagramParserState.StateType;
@@ -20,11 +24,20 @@ import com.engdev.blockdiagramdetector.state.State;
 import com.engdev.blockdiagramdetector.state.StateMachine;
 import com.engdev.blockdiagramdetector.tracer.ContourTracer;
 import com.engdev.blockdiagramdetector.tracer.ContourTracer.TracingResult;
-import com.engdev.blockdiagramdetector.tracer.MooreNeighborTracer;
+import com.engdev.blockdiagramdetector.tracer.ScanCursor;
+import com.engdev.blockdiagramdetector.tracer.TableMooreNeighborTracer;
+import com.engdev.blockdiagramdetector.tracer.TiledTracer;
 import com.engdev.blockdiagramdetector.util.Buffer;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Detects Block Diagram structures from a edge map
@@ -43,9 +56,14 @@ public class BlockDiagramParser implements Runnable {
     private List<Region> regions = null;
     private List<Region> unrecognizedRegions = null;
     private BlockDiagramAST root = null;
+    private TracingMode tracingMode = TracingMode.ContourTracing;
+    private int parallelism = 1;
+    private ExecutorService recognitionExecutor = null;
     public BlockDiagramParser(EdgeMap edgeMap) {
         this.edgeMap = edgeMap;
-        exploredMap = edgeMap.clone();
+
+        // Tracers only ask which pixels are black and unexplored
+        exploredMap = new BitEdgeMap(edgeMap);
         states = new Buffer<BlockDiagramParserState>(STATE_BUFFER_SIZE);
         init();
         setState(StateType.Undetected);
@@ -75,14 +93,27 @@ public class BlockDiagramParser implements Runnable {
      */
     private void traceRegions() {
 
+        if (tracingMode == TracingMode.Labelling) {
+            labelRegions();
+            return;
+        }
+        if (parallelism > 1) {
+            traceRegionsInTiles();
+            return;
+        }
+
         Region region = null;
 
         // Instantiates contours collection
         regions = new ArrayList<Region>();
 
         // Attempts first time
-        ContourTracer contourTracer = new MooreNeighborTracer(exploredMap);
+        ContourTracer contourTracer = new TableMooreNeighborTracer(exploredMap);
         contourTracer.setExploredMap(exploredMap);
+
+        // Every tracer resumes the scan where the previous one found its start point
+        ScanCursor cursor = new ScanCursor(contourTracer.getBounds());
+        contourTracer.setScanCursor(cursor);
         TracingResult perceptResult = contourTracer.trace();
 
         switch (perceptResult) {
@@ -101,8 +132,9 @@ public class BlockDiagramParser implements Runnable {
 
                 while (true) {
 
-                    contourTracer = new MooreNeighborTracer(exploredMap);
+                    contourTracer = new TableMooreNeighborTracer(exploredMap);
                     contourTracer.setExploredMap(exploredMap);
+                    contourTracer.setScanCursor(cursor);
                     perceptResult = contourTracer.trace();
 
                     if (perceptResult == TracingResult.NotAbleToFindStartPoint)
@@ -123,6 +155,100 @@ public class BlockDiagramParser implements Runnable {
         setState(StateType.Traced);
     }
 
+    /**
+     * Same loop as traceRegions over vertical tiles traced in parallel. The traces come back in
+     * the serial order, so the regions and the explored map are the same.
+     */
+    private void traceRegionsInTiles() {
+
+        regions = new ArrayList<Region>();
+
+        // One pool for the tiles and the labelling, released once the contours are traced
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        List<TiledTracer.Trace> traces;
+        try {
+            TiledTracer tracer = new TiledTracer(exploredMap);
+            tracer.setTiles(parallelism);
+            tracer.setPool(pool);
+            traces = tracer.trace();
+        } finally {
+            pool.shutdown();
+        }
+
+        if (traces.isEmpty())
+            result = DetectionResult.Unsuccessful;
+        else {
+            result = DetectionResult.Successful;
+            for (int i = 0; i < traces.size(); i++) {
+                TiledTracer.Trace trace = traces.get(i);
+                Region region = Region.createRegion(trace.getContour());
+
+                // As in the loop, the first trace is always kept and never makes the result partial
+                if (i == 0) {
+                    regions.add(region);
+                    continue;
+                }
+                if (trace.getResult() == TracingResult.NotAbleToContour)
+                    result = DetectionResult.PartialSuccessful;
+                if (!GeometricObjectRecognizer.isNoize(region))
+                    regions.add(region);
+            }
+            buildInnerRegions();
+        }
+
+        setState(StateType.Traced);
+    }
+
+    /**
+     * Finds regions by labelling the connected components in one pass and tracing the outer
+     * contour of each one, instead of scanning and tracing until the explored map is empty.
+     * The contours are sorted by start point, the order the tracing loop finds them in, and the
+     * pixels explored while tracing them are marked on the explored map.
+     */
+    private void labelRegions() {
+
+        regions = new ArrayList<Region>();
+
+        ConnectedComponentLabeller labeller = new ConnectedComponentLabeller(exploredMap);
+        List<ConnectedComponentLabeller.Component> components = labeller.label();
+
+        List<Contour> contours = new ArrayList<Contour>(components.size());
+        result = DetectionResult.Successful;
+        for (ConnectedComponentLabeller.Component component : components) {
+            Contour contour = labeller.traceContour(component);
+            if (contour == null)
+                continue;
+            if (labeller.getTracingResult() == TracingResult.NotAbleToContour)
+                result = DetectionResult.PartialSuccessful;
+            contours.add(contour);
+        }
+        Collections.sort(contours, new Comparator<Contour>() {
+            @Override
+            public int compare(Contour a, Contour b) {
+                Point p = a.first();
+                Point q = b.first();
+                if (p.x != q.x)
+                    return p.x < q.x ? -1 : 1;
+                return p.y < q.y ? -1 : (p.y == q.y ? 0 : 1);
+            }
+        });
+
+        if (contours.isEmpty())
+            result = DetectionResult.Unsuccessful;
+        else {
+            for (Contour contour : contours) {
+
+                // Like the tracing loop, the first region is kept even if it is noise
+                Region region = Region.createRegion(contour);
+                if (regions.isEmpty() || !GeometricObjectRecognizer.isNoize(region))
+                    regions.add(region);
+            }
+            buildInnerRegions();
+        }
+
+        setState(StateType.Traced);
+    }
+
     /**
      * Build Regions and their inner regions
      */
@@ -170,18 +296,11 @@ public class BlockDiagramParser implements Runnable {
             outerRegions.removeAll(region.getInnerRegions());
 
         // Loops through regions
-        for (Region region : outerRegions) {
-
-            // Recognizes object and adds to the tree.
-            GeometricObject object = GeometricObjectRecognizer.recognize(region);
-            BlockDiagramAST node = new BlockDiagramAST(region, object);
-            root.children.add(node);
-
-            if (object != null)
-                parseObject(node);
-            else
-                unrecognizedRegions.add(region);
-
+        if (recognitionExecutor != null)
+            parseInParallel(outerRegions);
+        else {
+            for (Region region : outerRegions)
+                root.children.add(parseRegion(region, unrecognizedRegions));
         }
 
         // Returns result
@@ -199,12 +318,74 @@ public class BlockDiagramParser implements Runnable {
     }
 
     /**
-     * Scans objects. This will not recurse as there is only two levels of object composition
+     * Recognizes the outer regions on the executor, each with its inner regions. Every task
+     * collects its own unrecognized regions and the nodes and unrecognized regions are added in
+     * the order of the regions, so the tree is the one the serial loop builds.
+     *
+     * @param outerRegions
+     */
+    private void parseInParallel(List<Region> outerRegions) {
+        List<Future<ParsedRegion>> futures = new ArrayList<Future<ParsedRegion>>(outerRegions.size());
+        for (final Region region : outerRegions) {
+            futures.add(recognitionExecutor.submit(new Callable<ParsedRegion>() {
+                @Override
+                public ParsedRegion call() {
+                    List<Region> unrecognized = new ArrayList<Region>();
+                    return new ParsedRegion(parseRegion(region, unrecognized), unrecognized);
+                }
+            }));
+        }
+
+        try {
+            for (Future<ParsedRegion> future : futures) {
+                ParsedRegion parsed = future.get();
+                root.children.add(parsed.node);
+                unrecognizedRegions.addAll(parsed.unrecognized);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while recognizing regions.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException("Region recognition failed.", cause);
+        } finally {
+            for (Future<ParsedRegion> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    /**
+     * Recognizes an outer region and its inner regions
      *
      * @param region
-     * @param gObject
+     * @param unrecognized regions not recognized are added to it
+     * @return node of the region
      */
-    private void parseObject(BlockDiagramAST parent) {
+    private BlockDiagramAST parseRegion(Region region, List<Region> unrecognized) {
+
+        // Recognizes object and adds to the tree.
+        GeometricObject object = GeometricObjectRecognizer.recognize(region);
+        BlockDiagramAST node = new BlockDiagramAST(region, object);
+
+        if (object != null)
+            parseObject(node, unrecognized);
+        else
+            unrecognized.add(region);
+
+        return node;
+    }
+
+    /**
+     * Scans objects. This will not recurse as there is only two levels of object composition
+     *
+     * @param parent
+     * @param unrecognized
+     */
+    private void parseObject(BlockDiagramAST parent, List<Region> unrecognized) {
 
         GeometricObjectType objectType = GeometricObject.getObjectType(parent.gObject);
 
@@ -212,7 +393,7 @@ public class BlockDiagramParser implements Runnable {
             case Ellipse:
             case Rectangle:
                 if (parent.region.getInnerRegions().size() > 0)
-                    parseInnerRegions(parent);
+                    parseInnerRegions(parent, unrecognized);
                 break;
             default:
         }
@@ -221,10 +402,10 @@ public class BlockDiagramParser implements Runnable {
     /**
      * Scans inner regions
      *
-     * @param parentRegion
-     * @param objectType
+     * @param parent
+     * @param unrecognized
      */
-    private void parseInnerRegions(BlockDiagramAST parent) {
+    private void parseInnerRegions(BlockDiagramAST parent, List<Region> unrecognized) {
 
         List<Region> innerRegions = parent.region.getInnerRegions();
         for (Region innerRegion : innerRegions) {
@@ -235,30 +416,38 @@ public class BlockDiagramParser implements Runnable {
 
             // Detects Devision rectangles and subtraction operators
             if (node.gObject != null && node.gObject.getObjectType() == GeometricObject.GeometricObjectType.Bar)
-                parseBar(parent, node);
+                parseBar(parent, node, unrecognized);
 
                 // Objects of same type
             else if (node.gObject != null && node.gObject.getObjectType() == parent.gObject.getObjectType())
-                parseEqualInnerRegion(parent, node);
+                parseEqualInnerRegion(parent, node, unrecognized);
 
                 // Unrecognized object
             else if (node.gObject == null)
-                unrecognizedRegions.add(innerRegion);
+                unrecognized.add(innerRegion);
 
         }
     }
 
     public void parseBar(BlockDiagramAST parent, BlockDiagramAST node) {
+        parseBar(parent, node, unrecognizedRegions);
+    }
+
+    private void parseBar(BlockDiagramAST parent, BlockDiagramAST node, List<Region> unrecognized) {
         // If it is a bar that is not a division symbol, may be a character
         if (!GeometricObjectRecognizer.isDivisionSymbol(parent.region, node.region))
             node.gObject = GeometricObjectRecognizer.recognizeCharacter(node.region);
 
         // If not recognized
         if (node.gObject == null)
-            unrecognizedRegions.add(node.region);
+            unrecognized.add(node.region);
     }
 
     public void parseEqualInnerRegion(BlockDiagramAST parent, BlockDiagramAST node) {
+        parseEqualInnerRegion(parent, node, unrecognizedRegions);
+    }
+
+    private void parseEqualInnerRegion(BlockDiagramAST parent, BlockDiagramAST node, List<Region> unrecognized) {
         // If it is a contour region, remove it from the tree
         if (GeometricObjectRecognizer.isInnerContourRegion(parent.region, node.region))
             parent.children.remove(node);
@@ -271,7 +460,7 @@ public class BlockDiagramParser implements Runnable {
 
             // If not recognized
             if (node.gObject == null)
-                unrecognizedRegions.add(node.region);
+                unrecognized.add(node.region);
         }
     }
 
@@ -399,6 +588,48 @@ public class BlockDiagramParser implements Runnable {
         return unrecognizedRegions;
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Number of tiles traced at the same time in ContourTracing mode. Regions do not depend on it.
+     *
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least one.");
+        this.parallelism = parallelism;
+    }
+
+    public ExecutorService getRecognitionExecutor() {
+        return recognitionExecutor;
+    }
+
+    /**
+     * Executor the regions are recognized on when parsing, null recognizes them on the parsing
+     * thread. The tree does not depend on it and the parser never shuts it down.
+     *
+     * @param recognitionExecutor
+     */
+    public void setRecognitionExecutor(ExecutorService recognitionExecutor) {
+        this.recognitionExecutor = recognitionExecutor;
+    }
+
+    public TracingMode getTracingMode() {
+        return tracingMode;
+    }
+
+    public void setTracingMode(TracingMode tracingMode) {
+        this.tracingMode = tracingMode;
+    }
+
+    public static enum TracingMode {
+        ContourTracing,
+        Labelling
+    }
+
     public static enum DetectionResult {
         Unsuccessful,
         Successful,
@@ -441,6 +672,21 @@ public class BlockDiagramParser implements Runnable {
 
     }
 
+    /**
+     * Node of an outer region and the regions of its tree that were not recognized
+     */
+    private static final class ParsedRegion {
+
+        private final BlockDiagramAST node;
+        private final List<Region> unrecognized;
+
+        private ParsedRegion(BlockDiagramAST node, List<Region> unrecognized) {
+            this.node = node;
+            this.unrecognized = unrecognized;
+        }
+
+    }
+
     private final class BlockDiagramDetectorMachine extends StateMachine {
 
         @Override
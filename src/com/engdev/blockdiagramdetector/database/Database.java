@@ -23,15 +23,28 @@ import java.util.Map;
 
 /**
  * Final class for database operations. Provide interface between xml database and application.
+ * <p/>
+ * The statistics are compiled into a StatisticsModel when the database is loaded, recognition
+ * reads the model and never the DOM.
  *
  * @author Engineer
  */
 public abstract class Database {
 
     private static Document dom = null;
+    private static StatisticsModel model = null;
 
     public static void load(Context context, String fileName) throws Exception {
-        dom = IOUtility.getXmlDOM(context, fileName);
+        setDom(IOUtility.getXmlDOM(context, fileName));
+    }
+
+    /**
+     * Statistics compiled when the database was loaded
+     *
+     * @return
+     */
+    public static StatisticsModel getModel() {
+        return model;
     }
 
     public static List<ObjectStatistics> getCharactersStatistics() {
@@ -120,6 +133,8 @@ public abstract class Database {
 
     public static void setDom(Document dom) {
         Database.dom = dom;
+        model = dom == null ? null
+                : new StatisticsModel(getStatisticsThreshold(), getCharactersStatistics(), getObjectsStatistics());
     }
 
 }
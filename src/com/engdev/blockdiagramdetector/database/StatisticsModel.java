@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statistics of the database compiled once when it is loaded. Random variables are indexed by
+ * Feature and the objects the recognizer looks for by ObjectClass, so a query is an array read.
+ * The model is immutable and can be shared between threads.
+ *
+ * @author Lucas Batista
+ */
+public final class StatisticsModel {
+
+    private final float threshold;
+    private final List<ClassModel> characters;
+    private final ClassModel[] objects = new ClassModel[ObjectClass.values().length];
+    private final Map<String, ClassModel> objectsById = new HashMap<String, ClassModel>();
+
+    StatisticsModel(float threshold, List<ObjectStatistics> characters, List<ObjectStatistics> objects) {
+        this.threshold = threshold;
+        List<ClassModel> models = new ArrayList<ClassModel>(characters.size());
+        for (ObjectStatistics stats : characters)
+            models.add(new ClassModel(stats));
+        this.characters = Collections.unmodifiableList(models);
+        for (ObjectStatistics stats : objects) {
+            ClassModel model = new ClassModel(stats);
+            objectsById.put(model.getId(), model);
+        }
+        for (ObjectClass objectClass : ObjectClass.values())
+            this.objects[objectClass.ordinal()] = objectsById.get(objectClass.getId());
+    }
+
+    /**
+     * Bound of the acceptance interval of the z scores
+     *
+     * @return
+     */
+    public float getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Characters in the order of the database
+     *
+     * @return
+     */
+    public List<ClassModel> getCharacters() {
+        return characters;
+    }
+
+    /**
+     * @param objectClass
+     * @return the object or null if the database does not have it
+     */
+    public ClassModel getObject(ObjectClass objectClass) {
+        return objects[objectClass.ordinal()];
+    }
+
+    /**
+     * @param id
+     * @return the object or null if the database does not have it
+     */
+    public ClassModel getObject(String id) {
+        return objectsById.get(id);
+    }
+
+    /**
+     * Random variables the recognizer knows, by their name in the database
+     */
+    public static enum Feature {
+        Phi1("phi1"),
+        Phi2("phi2"),
+        Phi3("phi3"),
+        CentroidX("centroid_x"),
+        CentroidY("centroid_y"),
+        Radius("radius"),
+        Circularity("circularity"),
+        Filling("filling"),
+        Compactness("compactness"),
+        FillingArea("filling_area"),
+        FillingPerimeter("filling_perimeter");
+
+        private final String name;
+
+        private Feature(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @param name
+         * @return the feature or null if there is none with this name
+         */
+        public static Feature fromName(String name) {
+            for (Feature feature : values())
+                if (feature.name.equals(name))
+                    return feature;
+            return null;
+        }
+    }
+
+    /**
+     * Objects of the database the recognizer tests regions against
+     */
+    public static enum ObjectClass {
+        Rectangle("rectangle"),
+        Ellipse("ellipse"),
+        Bar("bar"),
+        InnerContourRegion("inner_contour_region"),
+        DivisionSymbol("division_symbol");
+
+        private final String id;
+
+        private ObjectClass(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+    }
+
+    /**
+     * Statistics of one object or character, in dense arrays indexed by Feature
+     */
+    public static final class ClassModel {
+
+        private final String id;
+        private final String text;
+        private final boolean[] present = new boolean[Feature.values().length];
+        private final float[] mean = new float[Feature.values().length];
+        private final float[] stdev = new float[Feature.values().length];
+        private final float[] invStdev = new float[Feature.values().length];
+
+        private ClassModel(ObjectStatistics stats) {
+            id = stats.id;
+            text = stats.text;
+            for (Map.Entry<String, Statistics> entry : stats.randomVars.entrySet()) {
+                Feature feature = Feature.fromName(entry.getKey());
+                if (feature == null)
+                    continue;
+                int i = feature.ordinal();
+                present[i] = true;
+                mean[i] = entry.getValue().mean;
+                stdev[i] = entry.getValue().stdev;
+                invStdev[i] = 1 / stdev[i];
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public boolean has(Feature feature) {
+            return present[feature.ordinal()];
+        }
+
+        public float getMean(Feature feature) {
+            check(feature);
+            return mean[feature.ordinal()];
+        }
+
+        public float getStdev(Feature feature) {
+            check(feature);
+            return stdev[feature.ordinal()];
+        }
+
+        /**
+         * Inverse of the standard deviation, z scores are a product instead of a division
+         *
+         * @param feature
+         * @return
+         */
+        public float getInvStdev(Feature feature) {
+            check(feature);
+            return invStdev[feature.ordinal()];
+        }
+
+        private void check(Feature feature) {
+            if (!present[feature.ordinal()])
+                throw new IllegalArgumentException("Object " + id + " has no " + feature.getName() + ".");
+        }
+
+        @Override
+        public String toString() {
+            return id;
+        }
+    }
+
+}
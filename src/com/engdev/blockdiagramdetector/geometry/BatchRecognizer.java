@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.geometry;
+
+import android.graphics.Rect;
+import com.engdev.blockdiagramdetector.database.StatisticsModel;
+import com.engdev.blockdiagramdetector.database.StatisticsModel.ClassModel;
+import com.engdev.blockdiagramdetector.database.StatisticsModel.Feature;
+import com.engdev.blockdiagramdetector.database.StatisticsModel.ObjectClass;
+import com.engdev.blockdiagramdetector.geometry.CascadeRecognizer.Gate;
+import com.engdev.blockdiagramdetector.geometry.GeometricObject.GeometricObjectType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Recognizes a batch of regions at once, giving the objects a CascadeRecognizer gives region by
+ * region, the one GeometricObjectRecognizer.recognize uses unless another is given.
+ * <p/>
+ * The features of every region are extracted into a row of an N x F matrix and the statistics of
+ * the classes are compiled into C x F matrices of means and inverse stdevs, both laid out by the
+ * ordinal of Feature. Z scores and Euclidean distances are then loops over primitive arrays. The
+ * tests deciding each character and the gates of a trained cascade are read from the cascade when
+ * a batch starts, so a character is accepted when every test from the last one starting its
+ * hypothesis accepts and a region outside the gates of a class is not tested against it. The
+ * levelled filling is only computed for a row a test asks it for. Stage statistics of the cascade
+ * are not counted.
+ * <p/>
+ * Rows do not depend on each other, so they are split between the threads of a pool. The pool is
+ * owned by the recognizer and is released by shutdown.
+ *
+ * @author Lucas Batista
+ */
+public class BatchRecognizer {
+
+    private final static int SIZE = RegionFeatures.SIZE;
+    private final static int GATES = Gate.values().length;
+
+    private final static int PHI1 = Feature.Phi1.ordinal();
+    private final static int CIRCULARITY = Feature.Circularity.ordinal();
+    private final static int FILLING = Feature.Filling.ordinal();
+    private final static int COMPACTNESS = Feature.Compactness.ordinal();
+
+    // Objects tested before the characters, in the order of the cascade, and the column deciding them.
+    // The compactness test of rectangles and bars is overwritten by the phi1 test.
+    private final static GeometricObjectType[] OBJECTS = {
+            GeometricObjectType.Ellipse,
+            GeometricObjectType.Rectangle,
+            GeometricObjectType.Bar
+    };
+    private final static ObjectClass[] OBJECT_CLASSES = {
+            ObjectClass.Ellipse,
+            ObjectClass.Rectangle,
+            ObjectClass.Bar
+    };
+    private final static int[] OBJECT_COLUMNS = {CIRCULARITY, PHI1, PHI1};
+
+    // Rows handed to a thread at a time for each thread of the pool
+    private final static int ROWS_PER_THREAD = 4;
+
+    private final CascadeRecognizer cascade;
+    private volatile ClassMatrices matrices = null;
+
+    private int parallelism = 1;
+    private ForkJoinPool pool = null;
+
+    /**
+     * Recognizer of the cascade GeometricObjectRecognizer.recognize uses at the time of each batch
+     */
+    public BatchRecognizer() {
+        cascade = null;
+    }
+
+    /**
+     * @param model statistics the regions are tested against by an untrained cascade
+     */
+    public BatchRecognizer(StatisticsModel model) {
+        this(new CascadeRecognizer(model));
+    }
+
+    /**
+     * @param cascade cascade whose tests and gates the regions are recognized by, a trained one
+     *                for instance
+     */
+    public BatchRecognizer(CascadeRecognizer cascade) {
+        if (cascade == null)
+            throw new IllegalArgumentException("Cascade cannot be null.");
+        this.cascade = cascade;
+    }
+
+    /**
+     * Recognizes every region
+     *
+     * @param regions
+     * @return the object of each region in the same order, null where a region is not recognized
+     */
+    public List<GeometricObject> recognize(List<Region> regions) {
+        CascadeRecognizer cascade = this.cascade == null ? GeometricObjectRecognizer.getCascade() : this.cascade;
+        ClassMatrices matrices = this.matrices;
+        if (matrices == null || matrices.model != cascade.getModel()) {
+            matrices = new ClassMatrices(cascade.getModel());
+            this.matrices = matrices;
+        }
+
+        Batch batch = new Batch(matrices, new Stages(cascade, matrices.classes), regions);
+        int rows = regions.size();
+        if (parallelism > 1 && rows > 1) {
+            int grain = Math.max(1, rows / (parallelism * ROWS_PER_THREAD));
+            getPool().invoke(new RowTask(batch, 0, rows, grain));
+        } else
+            batch.recognizeRows(0, rows);
+        return new ArrayList<GeometricObject>(Arrays.asList(batch.objects));
+    }
+
+    /**
+     * Whether a z score lies in the acceptance interval. Compactness is scaled by its mean.
+     */
+    private static boolean accepts(int column, float value, float mean, float invStdev, float threshold) {
+        float z = column == COMPACTNESS ? (value - mean) / mean : (value - mean) * invStdev;
+        return z >= -threshold && z <= threshold;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Number of threads the rows are recognized by. Recognitions do not depend on this value.
+     *
+     * @param parallelism
+     */
+    public synchronized void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least one.");
+        if (pool != null && pool.getParallelism() != parallelism)
+            shutdown();
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Releases the threads of the pool. The recognizer can still be used, a new pool is created
+     * by the next batch recognized in parallel.
+     */
+    public synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    private synchronized ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool(parallelism);
+        return pool;
+    }
+
+    /**
+     * Statistics of a model, class c and feature f at c * SIZE + f. Objects come first in the
+     * order of OBJECTS.
+     */
+    private static final class ClassMatrices {
+
+        private final StatisticsModel model;
+        private final float threshold;
+        private final int classes;
+        private final String[] texts;
+        private final boolean[] present;
+        private final float[] means;
+        private final float[] invStdevs;
+
+        ClassMatrices(StatisticsModel model) {
+            this.model = model;
+            threshold = model.getThreshold();
+
+            List<ClassModel> characters = model.getCharacters();
+            classes = characters.size();
+            int rows = OBJECTS.length + classes;
+            texts = new String[classes];
+            present = new boolean[rows * SIZE];
+            means = new float[rows * SIZE];
+            invStdevs = new float[rows * SIZE];
+            for (int k = 0; k < OBJECTS.length; k++)
+                add(k, model.getObject(OBJECT_CLASSES[k]));
+            for (int c = 0; c < classes; c++) {
+                texts[c] = characters.get(c).getText();
+                add(OBJECTS.length + c, characters.get(c));
+            }
+        }
+
+        private void add(int row, ClassModel stats) {
+            for (Feature feature : RegionFeatures.FEATURES) {
+                if (!stats.has(feature))
+                    continue;
+                int i = row * SIZE + feature.ordinal();
+                present[i] = true;
+                means[i] = stats.getMean(feature);
+                invStdevs[i] = stats.getInvStdev(feature);
+            }
+        }
+    }
+
+    /**
+     * Tests and gates of the cascade when a batch starts. Columns tested for character c are
+     * tests[c], gates of a class row are at row * GATES and a class without gates has none.
+     */
+    private static final class Stages {
+
+        private final int[][] tests;
+        private final boolean gated;
+        private final boolean[] hasGates;
+        private final float[] gateMin;
+        private final float[] gateMax;
+
+        Stages(CascadeRecognizer cascade, int classes) {
+            CascadeRecognizer.Plan plan = cascade.getPlan();
+            int rows = OBJECTS.length + classes;
+            tests = new int[classes][];
+            hasGates = new boolean[rows];
+            gateMin = new float[rows * GATES];
+            gateMax = new float[rows * GATES];
+
+            boolean gated = false;
+            for (int k = 0; k < OBJECTS.length; k++)
+                gated |= addGates(k, plan, OBJECTS[k]);
+            for (int c = 0; c < classes; c++) {
+                gated |= addGates(OBJECTS.length + c, plan, cascade.getCharacterType(c));
+                Feature[] features = plan.getTests(c);
+                if (features == null)
+                    continue;
+                tests[c] = new int[features.length];
+                for (int i = 0; i < features.length; i++)
+                    tests[c][i] = features[i].ordinal();
+            }
+            this.gated = gated;
+        }
+
+        private boolean addGates(int row, CascadeRecognizer.Plan plan, GeometricObjectType type) {
+            float[] min = plan.getGateMin(type);
+            if (min == null)
+                return false;
+            System.arraycopy(min, 0, gateMin, row * GATES, GATES);
+            System.arraycopy(plan.getGateMax(type), 0, gateMax, row * GATES, GATES);
+            hasGates[row] = true;
+            return true;
+        }
+    }
+
+    /**
+     * Feature and gate matrices of a batch and its recognitions. Each row is written by a single
+     * thread.
+     */
+    private static final class Batch {
+
+        private final ClassMatrices matrices;
+        private final Stages stages;
+        private final List<Region> regions;
+        private final float[] features;
+        private final float[] gates;
+        private final GeometricObject[] objects;
+
+        Batch(ClassMatrices matrices, Stages stages, List<Region> regions) {
+            this.matrices = matrices;
+            this.stages = stages;
+            this.regions = regions;
+            features = new float[regions.size() * SIZE];
+            gates = stages.gated ? new float[regions.size() * GATES] : null;
+            objects = new GeometricObject[regions.size()];
+        }
+
+        void recognizeRows(int from, int to) {
+            for (int row = from; row < to; row++) {
+                Region region = regions.get(row);
+                RegionFeatures values = RegionFeatures.of(region);
+                int offset = row * SIZE;
+                Arrays.fill(features, offset, offset + SIZE, Float.NaN);
+                for (Feature feature : RegionFeatures.FEATURES)
+                    if (feature != Feature.Filling)
+                        features[offset + feature.ordinal()] = values.get(feature);
+                if (gates != null)
+                    System.arraycopy(CascadeRecognizer.gateValues(region), 0, gates, row * GATES, GATES);
+                objects[row] = recognizeRow(row, values);
+            }
+        }
+
+        /**
+         * Recognizes the region of a row. Objects are tested first in the order of the cascade
+         * and then the characters.
+         */
+        private GeometricObject recognizeRow(int row, RegionFeatures values) {
+            int offset = row * SIZE;
+            float threshold = matrices.threshold;
+            Rect bounds = values.getBounds();
+
+            for (int k = 0; k < OBJECTS.length; k++) {
+                if (!passesGates(row, k))
+                    continue;
+                int i = k * SIZE + OBJECT_COLUMNS[k];
+                if (accepts(OBJECT_COLUMNS[k], features[offset + OBJECT_COLUMNS[k]], matrices.means[i], matrices.invStdevs[i], threshold)) {
+                    switch (OBJECTS[k]) {
+                        case Ellipse:
+                            return new Ellipse(new Rect(bounds));
+                        case Rectangle:
+                            return new Rectangle(bounds);
+                        default:
+                            return new Bar(bounds);
+                    }
+                }
+            }
+
+            int classes = matrices.classes;
+            int[] recognitions = new int[classes];
+            int count = 0;
+            for (int c = 0; c < classes; c++)
+                if (passesGates(row, OBJECTS.length + c) && testHypothesis(row, c, values))
+                    recognitions[count++] = c;
+
+            if (count == 0)
+                return null;
+            if (count == 1)
+                return new Character(bounds, matrices.texts[recognitions[0]], values.getCentroid());
+
+            // Euclidean tie-breaker, which levels the region by a single rotation
+            float minDistance = 1E9F;
+            String charText = null;
+            for (int k = 0; k < count; k++) {
+                int c = recognitions[k];
+                float distance = getEculidianDistance(offset, c, values.getLevelFilling());
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    charText = matrices.texts[c];
+                }
+            }
+            return new Character(bounds, charText, values.getCentroid());
+        }
+
+        private boolean passesGates(int row, int classRow) {
+            if (gates == null || !stages.hasGates[classRow])
+                return true;
+            int offset = row * GATES;
+            int base = classRow * GATES;
+            for (int g = 0; g < GATES; g++) {
+                float value = gates[offset + g];
+                if (value < stages.gateMin[base + g] || value > stages.gateMax[base + g])
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Runs the tests deciding a character in the order of the cascade, the first rejection
+         * ends them
+         */
+        private boolean testHypothesis(int row, int c, RegionFeatures values) {
+            int[] columns = stages.tests[c];
+            if (columns == null)
+                return false;
+            int offset = row * SIZE;
+            int base = (OBJECTS.length + c) * SIZE;
+            float threshold = matrices.threshold;
+            for (int column : columns) {
+                if (column == FILLING && Float.isNaN(features[offset + FILLING]))
+                    features[offset + FILLING] = values.get(Feature.Filling);
+                if (!accepts(column, features[offset + column], matrices.means[base + column], matrices.invStdevs[base + column], threshold))
+                    return false;
+            }
+            return true;
+        }
+
+        private float getEculidianDistance(int offset, int c, float levelFilling) {
+            int base = (OBJECTS.length + c) * SIZE;
+            float diff = 0;
+            float distance = 0;
+            for (Feature feature : RegionFeatures.FEATURES) {
+                int column = feature.ordinal();
+                if (!matrices.present[base + column])
+                    continue;
+                float value = column == FILLING ? levelFilling : features[offset + column];
+                diff = value - matrices.means[base + column];
+                distance += Math.pow(diff, 2);
+            }
+            return distance;
+        }
+    }
+
+    private static final class RowTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Batch batch;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        RowTask(Batch batch, int from, int to, int grain) {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                batch.recognizeRows(from, to);
+                return;
+            }
+            int middle = (from + to) / 2;
+            invokeAll(new RowTask(batch, from, middle, grain), new RowTask(batch, middle, to, grain));
+        }
+    }
+
+}
@@ -0,0 +1,508 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.geometry;
+
+import android.graphics.Rect;
+import com.engdev.blockdiagramdetector.database.StatisticsModel;
+import com.engdev.blockdiagramdetector.database.StatisticsModel.ClassModel;
+import com.engdev.blockdiagramdetector.database.StatisticsModel.Feature;
+import com.engdev.blockdiagramdetector.geometry.GeometricObject.GeometricObjectType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Recognizes a region by a cascade of tests, cheap and rejecting ones first, giving the objects
+ * of testing ellipses, rectangles, bars and then characters one after the other.
+ * <p/>
+ * A character is accepted when every test of its hypothesis from the last one starting it again
+ * accepts, so these tests are run in any order and the first rejection ends them. Features are
+ * computed when a test first asks for them and the levelled filling, which rotates every pixel,
+ * is only computed for a region no cheaper test has ruled out. Tests are ordered by cost until
+ * the cascade is trained, then by cost over the rate they reject at on the labelled regions.
+ * <p/>
+ * Training also learns gates, the ranges of aspect ratio, Euler number and area of the regions
+ * of each label, widened by a margin. A region outside the gates of a class is not tested
+ * against it. Gates are only learned for labels with regions, an untrained cascade has none and
+ * recognizes the same objects as the tests one after the other. Evaluations and rejections of
+ * every stage are only counted once statistics are enabled, each thread in counters of its own
+ * summed when the statistics are read.
+ *
+ * @author Lucas Batista
+ */
+public class CascadeRecognizer {
+
+    // Relative widening of the learned ranges of aspect ratio and area
+    private final static float GATE_MARGIN = 0.5F;
+
+    // Objects tested before the characters, in the order they are tested
+    private final static GeometricObjectType[] OBJECTS = {
+            GeometricObjectType.Ellipse,
+            GeometricObjectType.Rectangle,
+            GeometricObjectType.Bar
+    };
+
+    private final static int GATES = Gate.values().length;
+    private final static int STAGES = GATES + OBJECTS.length + RegionFeatures.SIZE;
+
+    private final StatisticsModel model;
+    private final List<ClassModel> characters;
+    private final GeometricObjectType[] characterTypes;
+    private volatile boolean statisticsEnabled = false;
+    private volatile StageCounters counters = new StageCounters();
+    private volatile Plan plan = null;
+
+    /**
+     * @param model statistics the regions are tested against
+     */
+    public CascadeRecognizer(StatisticsModel model) {
+        if (model == null)
+            throw new IllegalArgumentException("Statistics model cannot be null.");
+        this.model = model;
+        characters = model.getCharacters();
+        characterTypes = new GeometricObjectType[characters.size()];
+        for (int c = 0; c < characters.size(); c++) {
+            Character character = new Character(new Rect(), characters.get(c).getText(), new Point(0, 0));
+            characterTypes[c] = GeometricObject.getObjectType(character);
+        }
+
+        Feature[] order = RegionFeatures.FEATURES.clone();
+        Arrays.sort(order, new Comparator<Feature>() {
+            @Override
+            public int compare(Feature a, Feature b) {
+                return Float.compare(RegionFeatures.getCost(a), RegionFeatures.getCost(b));
+            }
+        });
+        plan = new Plan(order, buildTests(order), null);
+    }
+
+    /**
+     * Tests of a character hypothesis that decide it, in the order of the cascade. Phi1 and
+     * circularity start the hypothesis, so only the tests from the last of them on decide it.
+     *
+     * @return null for the classes that are never accepted
+     */
+    private Feature[][] buildTests(Feature[] order) {
+        Feature[][] tests = new Feature[characters.size()][];
+        for (int c = 0; c < characters.size(); c++) {
+            ClassModel stats = characters.get(c);
+            int start = -1;
+            for (int i = 0; i < RegionFeatures.FEATURES.length; i++) {
+                Feature feature = RegionFeatures.FEATURES[i];
+                if (stats.has(feature) && (feature == Feature.Phi1 || feature == Feature.Circularity))
+                    start = i;
+            }
+            if (start < 0)
+                continue;
+
+            List<Feature> decisive = new ArrayList<Feature>();
+            for (int i = start; i < RegionFeatures.FEATURES.length; i++)
+                if (stats.has(RegionFeatures.FEATURES[i]))
+                    decisive.add(RegionFeatures.FEATURES[i]);
+            List<Feature> ordered = new ArrayList<Feature>(decisive.size());
+            for (Feature feature : order)
+                if (decisive.contains(feature))
+                    ordered.add(feature);
+            tests[c] = ordered.toArray(new Feature[ordered.size()]);
+        }
+        return tests;
+    }
+
+    /**
+     * Recognizes a region
+     *
+     * @param region
+     * @return the object or null if it is not recognized
+     */
+    public GeometricObject recognize(Region region) {
+        Plan plan = this.plan;
+        float[] gates = plan.ranges == null ? null : gateValues(region);
+        long[] counts = statisticsEnabled ? counters.get() : null;
+
+        for (int k = 0; k < OBJECTS.length; k++) {
+            if (!passesGates(plan, gates, OBJECTS[k], counts))
+                continue;
+            if (counts != null)
+                counts[GATES + k]++;
+            GeometricObject object = recognizeObject(OBJECTS[k], region);
+            if (object != null)
+                return object;
+            if (counts != null)
+                counts[STAGES + GATES + k]++;
+        }
+
+        RegionFeatures features = RegionFeatures.of(region);
+        float threshold = model.getThreshold();
+        List<ClassModel> recognitions = new ArrayList<ClassModel>();
+        for (int c = 0; c < characters.size(); c++) {
+            if (!passesGates(plan, gates, characterTypes[c], counts))
+                continue;
+            if (testHypothesis(plan.tests[c], characters.get(c), features, threshold, counts))
+                recognitions.add(characters.get(c));
+        }
+
+        if (recognitions.size() == 1)
+            return new Character(features.getBounds(), recognitions.get(0).getText(), features.getCentroid());
+        else if (recognitions.size() > 1)
+            return GeometricObjectRecognizer.recognizeCharacterByEculidian(features, recognitions);
+        return null;
+    }
+
+    private GeometricObject recognizeObject(GeometricObjectType type, Region region) {
+        switch (type) {
+            case Ellipse:
+                return GeometricObjectRecognizer.recognizeEllipse(region, model);
+            case Rectangle:
+                return GeometricObjectRecognizer.recognizeRectangle(region, model);
+            default:
+                return GeometricObjectRecognizer.recognizeBar(region, model);
+        }
+    }
+
+    private boolean testHypothesis(Feature[] tests, ClassModel stats, RegionFeatures features, float threshold,
+                                   long[] counts) {
+        if (tests == null)
+            return false;
+        for (Feature feature : tests) {
+            int stage = GATES + OBJECTS.length + feature.ordinal();
+            if (counts != null)
+                counts[stage]++;
+            if (!GeometricObjectRecognizer.acceptsFeature(features.get(feature), stats, feature, threshold)) {
+                if (counts != null)
+                    counts[STAGES + stage]++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Aspect ratio, Euler number and area of a region, by the ordinal of Gate
+     */
+    static float[] gateValues(Region region) {
+        float[] values = new float[GATES];
+        Rect bounds = region.getContour().getBoundingBox();
+        values[Gate.AspectRatio.ordinal()] = (bounds.width() + 1) / (float) (bounds.height() + 1);
+        values[Gate.EulerNumber.ordinal()] = region.eulerNumber();
+        values[Gate.Area.ordinal()] = region.area();
+        return values;
+    }
+
+    private boolean passesGates(Plan plan, float[] gates, GeometricObjectType type, long[] counts) {
+        if (gates == null || type == null || plan.ranges[type.ordinal()] == null)
+            return true;
+        Range range = plan.ranges[type.ordinal()];
+        for (int g = 0; g < GATES; g++) {
+            if (counts != null)
+                counts[g]++;
+            if (gates[g] < range.min[g] || gates[g] > range.max[g]) {
+                if (counts != null)
+                    counts[STAGES + g]++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Learns the gates of the labels and orders the tests from labelled regions. Every test
+     * deciding a character hypothesis is run on every region to count how often it rejects.
+     * Regions labelled Noise or null only count for the order.
+     *
+     * @param regions
+     * @param labels  type of each region
+     */
+    public void train(List<Region> regions, List<GeometricObjectType> labels) {
+        if (regions.size() != labels.size())
+            throw new IllegalArgumentException("There must be a label for each region.");
+
+        Plan plan = this.plan;
+        float threshold = model.getThreshold();
+        final long[] evaluated = new long[RegionFeatures.SIZE];
+        final long[] rejected = new long[RegionFeatures.SIZE];
+        Range[] ranges = new Range[GeometricObjectType.values().length];
+
+        for (int i = 0; i < regions.size(); i++) {
+            Region region = regions.get(i);
+            GeometricObjectType label = labels.get(i);
+            if (label != null && label != GeometricObjectType.Noise) {
+                if (ranges[label.ordinal()] == null)
+                    ranges[label.ordinal()] = new Range();
+                ranges[label.ordinal()].add(gateValues(region));
+            }
+
+            RegionFeatures features = RegionFeatures.of(region);
+            for (int c = 0; c < characters.size(); c++) {
+                if (plan.tests[c] == null)
+                    continue;
+                for (Feature feature : plan.tests[c]) {
+                    evaluated[feature.ordinal()]++;
+                    if (!GeometricObjectRecognizer.acceptsFeature(features.get(feature), characters.get(c), feature, threshold))
+                        rejected[feature.ordinal()]++;
+                }
+            }
+        }
+
+        for (Range range : ranges)
+            if (range != null)
+                range.widen();
+
+        // Expected cost of a rejection, tests that never reject go last
+        final float[] keys = new float[RegionFeatures.SIZE];
+        for (Feature feature : RegionFeatures.FEATURES) {
+            int f = feature.ordinal();
+            keys[f] = rejected[f] == 0 ? Float.POSITIVE_INFINITY
+                    : RegionFeatures.getCost(feature) * evaluated[f] / rejected[f];
+        }
+        Feature[] order = RegionFeatures.FEATURES.clone();
+        Arrays.sort(order, new Comparator<Feature>() {
+            @Override
+            public int compare(Feature a, Feature b) {
+                int compare = Float.compare(keys[a.ordinal()], keys[b.ordinal()]);
+                if (compare == 0)
+                    compare = Float.compare(RegionFeatures.getCost(a), RegionFeatures.getCost(b));
+                return compare;
+            }
+        });
+        this.plan = new Plan(order, buildTests(order), ranges);
+    }
+
+    /**
+     * Whether gates were learned
+     *
+     * @return
+     */
+    public boolean isTrained() {
+        return plan.ranges != null;
+    }
+
+    /**
+     * Order the feature tests are run in
+     *
+     * @return
+     */
+    public Feature[] getFeatureOrder() {
+        return plan.order.clone();
+    }
+
+    /**
+     * Statistics of the gates, the objects and the feature tests, in the order of the cascade.
+     * Counts of a thread still recognizing may be missing its last regions.
+     *
+     * @return
+     */
+    public List<StageStatistics> getStatistics() {
+        long[] counts = counters.sum();
+        List<StageStatistics> statistics = new ArrayList<StageStatistics>(STAGES);
+        for (Gate gate : Gate.values())
+            statistics.add(getStatistics(counts, gate.ordinal(), gate.toString()));
+        for (int k = 0; k < OBJECTS.length; k++)
+            statistics.add(getStatistics(counts, GATES + k, OBJECTS[k].toString()));
+        for (Feature feature : plan.order)
+            statistics.add(getStatistics(counts, GATES + OBJECTS.length + feature.ordinal(), feature.getName()));
+        return statistics;
+    }
+
+    private StageStatistics getStatistics(long[] counts, int stage, String name) {
+        return new StageStatistics(name, counts[stage], counts[STAGES + stage]);
+    }
+
+    public void resetStatistics() {
+        counters = new StageCounters();
+    }
+
+    public boolean isStatisticsEnabled() {
+        return statisticsEnabled;
+    }
+
+    /**
+     * Whether evaluations and rejections of the stages are counted, off by default
+     *
+     * @param statisticsEnabled
+     */
+    public void setStatisticsEnabled(boolean statisticsEnabled) {
+        this.statisticsEnabled = statisticsEnabled;
+    }
+
+    public StatisticsModel getModel() {
+        return model;
+    }
+
+    /**
+     * Tests and gates the cascade runs at the moment, they change when it is trained
+     *
+     * @return
+     */
+    Plan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Type of the object a character class is recognized as, the one its gates are learned for
+     *
+     * @param character index of the class in the characters of the model
+     * @return
+     */
+    GeometricObjectType getCharacterType(int character) {
+        return characterTypes[character];
+    }
+
+    /**
+     * Cheap features ruling classes out before any test, in the order they are evaluated
+     */
+    public static enum Gate {
+        AspectRatio,
+        EulerNumber,
+        Area
+    }
+
+    /**
+     * How often a stage of the cascade was evaluated and how often it rejected
+     */
+    public static final class StageStatistics {
+
+        private final String name;
+        private final long evaluations;
+        private final long rejections;
+
+        private StageStatistics(String name, long evaluations, long rejections) {
+            this.name = name;
+            this.evaluations = evaluations;
+            this.rejections = rejections;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getEvaluations() {
+            return evaluations;
+        }
+
+        public long getRejections() {
+            return rejections;
+        }
+
+        public float getRejectionRate() {
+            return evaluations == 0 ? 0 : rejections / (float) evaluations;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + rejections + "/" + evaluations;
+        }
+    }
+
+    /**
+     * Counts of the threads recognizing regions, evaluations of each stage followed by its
+     * rejections
+     */
+    private static final class StageCounters extends ThreadLocal<long[]> {
+
+        private final List<long[]> counts = new ArrayList<long[]>();
+
+        @Override
+        protected long[] initialValue() {
+            long[] threadCounts = new long[2 * STAGES];
+            synchronized (counts) {
+                counts.add(threadCounts);
+            }
+            return threadCounts;
+        }
+
+        private long[] sum() {
+            long[] sum = new long[2 * STAGES];
+            synchronized (counts) {
+                for (long[] threadCounts : counts)
+                    for (int i = 0; i < sum.length; i++)
+                        sum[i] += threadCounts[i];
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Order of the feature tests, the tests of each character and the gates of each label
+     */
+    static final class Plan {
+
+        private final Feature[] order;
+        private final Feature[][] tests;
+        private final Range[] ranges;
+
+        private Plan(Feature[] order, Feature[][] tests, Range[] ranges) {
+            this.order = order;
+            this.tests = tests;
+            this.ranges = ranges;
+        }
+
+        /**
+         * Tests deciding the hypothesis of a character, in the order they are run
+         *
+         * @param character
+         * @return null for a class that is never accepted
+         */
+        Feature[] getTests(int character) {
+            return tests[character];
+        }
+
+        /**
+         * Lowest gate values of a label, by the ordinal of Gate
+         *
+         * @param type
+         * @return null when the label has no gates
+         */
+        float[] getGateMin(GeometricObjectType type) {
+            return ranges == null || type == null || ranges[type.ordinal()] == null ? null : ranges[type.ordinal()].min;
+        }
+
+        /**
+         * Highest gate values of a label, by the ordinal of Gate
+         *
+         * @param type
+         * @return null when the label has no gates
+         */
+        float[] getGateMax(GeometricObjectType type) {
+            return ranges == null || type == null || ranges[type.ordinal()] == null ? null : ranges[type.ordinal()].max;
+        }
+    }
+
+    /**
+     * Range of the gate values of the regions of a label
+     */
+    private static final class Range {
+
+        private final float[] min = new float[GATES];
+        private final float[] max = new float[GATES];
+        private boolean empty = true;
+
+        private void add(float[] values) {
+            for (int g = 0; g < GATES; g++) {
+                min[g] = empty ? values[g] : Math.min(min[g], values[g]);
+                max[g] = empty ? values[g] : Math.max(max[g], values[g]);
+            }
+            empty = false;
+        }
+
+        /**
+         * Widens the ranges of aspect ratio and area, the Euler number is kept exact
+         */
+        private void widen() {
+            for (Gate gate : new Gate[]{Gate.AspectRatio, Gate.Area}) {
+                int g = gate.ordinal();
+                min[g] -= GATE_MARGIN * Math.abs(min[g]);
+                max[g] += GATE_MARGIN * Math.abs(max[g]);
+            }
+        }
+    }
+
+}
@@ -10,14 +10,21 @@
 package com.engdev.blockdiagramdetector.geometry;
 
 import android.graphics.Rect;
-import com.engdev.blockdiagramdetector.math.MathUtility;
+import com.engdev.blockdiagramdetector.math.MomentAccumulator;
+import com.engdev.blockdiagramdetector.math.ScanlineFill;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Observable;
 
 /**
  * A collection of Links.
+ * <p/>
+ * Chain codes are kept in a byte array and getCodes returns a list view of it. Points are walked
+ * with a PointCursor, which allocates nothing per point. Once sealed a contour can no longer change
+ * and its perimeter, bounding box and vertex count are computed together in a single pass.
  *
  * @author Lucas Batista
  */
@@ -25,20 +32,43 @@ public final class Contour extends Observable {
 
     public final static float SQRT2 = 1.414213562F;
     public final static float PERIMETER_FACTOR = 0.95F;
+    private final static int INITIAL_CAPACITY = 16;
     private Point startPoint = null;
-    private List<Byte> codes = null;
+    private byte[] codes = null;
+    private int codeCount = 0;
+    private final List<Byte> codeList = new CodeList();
     private Rect bounds = null;
     private MarshDirection marshDirection = MarshDirection.CounterClockwise;
 
+    // Sealed summary
+    private boolean sealed = false;
+    private float perimeter = 0F;
+    private int vertexCount = 0;
+    private float area = -1F;
+
     public Contour(Point startPoint, MarshDirection marshDirection) {
         this.startPoint = new Point(startPoint.x, startPoint.y);
-        codes = new ArrayList<Byte>();
+        codes = new byte[INITIAL_CAPACITY];
         this.marshDirection = marshDirection;
     }
 
     public Contour(Point startPoint, List<Byte> codes, MarshDirection marshDirection) {
         this(startPoint, marshDirection);
-        this.codes = codes;
+        this.codes = new byte[Math.max(codes.size(), INITIAL_CAPACITY)];
+        for (byte code : codes)
+            this.codes[codeCount++] = code;
+    }
+
+    /**
+     * @param startPoint
+     * @param codes          chain codes, copied
+     * @param size           number of codes used
+     * @param marshDirection
+     */
+    public Contour(Point startPoint, byte[] codes, int size, MarshDirection marshDirection) {
+        this(startPoint, marshDirection);
+        this.codes = Arrays.copyOf(codes, Math.max(size, INITIAL_CAPACITY));
+        codeCount = size;
     }
 
     public static int toInteger(ChainCode c) {
@@ -281,7 +311,7 @@ public final class Contour extends Observable {
      * @return
      */
     public static float areaPick(Contour c) {
-        float area = c.getContainedPoints().size();
+        float area = c.getContainedSpans().area();
         List<Byte> codes = c.getCodes();
         area += codes.size() / 2 - 1;
         return area;
@@ -413,7 +443,9 @@ public final class Contour extends Observable {
      * @return
      */
     public float perimeter() {
-        return perimeter(codes);
+        if (sealed)
+            return perimeter;
+        return perimeter(codeList);
     }
 
     /**
@@ -422,7 +454,7 @@ public final class Contour extends Observable {
      * @return
      */
     public int size() {
-        return codes.size();
+        return codeCount;
     }
 
     /**
@@ -431,7 +463,11 @@ public final class Contour extends Observable {
      * @return
      */
     public float area() {
-        return getPoints().size();
+        if (!sealed)
+            return (float) getMoments().getArea();
+        if (area < 0)
+            area = (float) getMoments().getArea();
+        return area;
     }
 
     /**
@@ -441,8 +477,8 @@ public final class Contour extends Observable {
      */
     public float bendingEnergy() {
         float energy = 0;
-        for (Byte code : codes)
-            energy += Math.pow(code, 2);
+        for (int i = 0; i < codeCount; i++)
+            energy += Math.pow(codes[i], 2);
         return energy / perimeter();
     }
 
@@ -450,39 +486,99 @@ public final class Contour extends Observable {
         List<Point> points = getContourPoints();
         List<Point> vertices = new ArrayList<Point>();
         for (int i = 0; i < size() - 2; i++) {
-            if (codes.get(i) != codes.get(i + 1))
+            if (codes[i] != codes[i + 1])
                 vertices.add(points.get(i));
         }
         return vertices;
     }
 
+    /**
+     * Number of points getVertices returns, without building them
+     *
+     * @return
+     */
+    public int getVertexCount() {
+        if (sealed)
+            return vertexCount;
+        int count = 0;
+        for (int i = 0; i < codeCount - 2; i++)
+            if (codes[i] != codes[i + 1])
+                count++;
+        return count;
+    }
+
     public boolean addChainCode(byte code) {
-        return codes.add(code);
+        return codeList.add(code);
     }
 
     public short removeChainCode(int location) {
-        return codes.remove(location);
+        return codeList.remove(location);
     }
 
+    /**
+     * List view of the chain codes. Writes go to the contour while it is not sealed.
+     *
+     * @return
+     */
     public List<Byte> getCodes() {
-        return codes;
+        return codeList;
+    }
+
+    /**
+     * Chain code at an index
+     *
+     * @param index
+     * @return
+     */
+    public byte getCode(int index) {
+        if (index < 0 || index >= codeCount)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + codeCount);
+        return codes[index];
     }
 
     public List<Point> getContourPoints() {
-        Point p = null;
-        Point fromPoint = new Point(startPoint.x, startPoint.y);
-        List<Point> points = new ArrayList<Point>();
+        List<Point> points = new ArrayList<Point>(codeCount + 1);
+        PointCursor cursor = cursor();
+        while (cursor.next())
+            points.add(new Point(cursor.getX(), cursor.getY()));
+        return points;
+    }
 
-        // Adds clone of start point
-        points.add(fromPoint);
+    /**
+     * Cursor over the points of getContourPoints
+     *
+     * @return
+     */
+    public PointCursor cursor() {
+        return new PointCursor();
+    }
 
-        for (int i = 0; i < codes.size() - 2; i++) {
-            p = getPoint(fromPoint, codes.get(i + 1));
-            points.add(p);
-            fromPoint = p;
+    /**
+     * Freezes the contour and caches its perimeter, vertex count and bounding box, so they are
+     * computed once
+     */
+    public void seal() {
+        if (sealed)
+            return;
+        float p = 0;
+        int count = 0;
+        for (int i = 0; i < codeCount; i++) {
+            byte code = codes[i];
+            if (code % 2F == 0)
+                p++;
+            else
+                p += SQRT2;
+            if (i < codeCount - 2 && code != codes[i + 1])
+                count++;
         }
-        points.add(getPoint(fromPoint, codes.get(codes.size() - 1)));
-        return points;
+        perimeter = p * PERIMETER_FACTOR;
+        vertexCount = count;
+        getBoundingBox();
+        sealed = true;
+    }
+
+    public boolean isSealed() {
+        return sealed;
     }
 
     /**
@@ -492,7 +588,71 @@ public final class Contour extends Observable {
      * @return
      */
     public List<Point> getContainedPoints() {
-        return MathUtility.getContainedPoints(getContourPoints(), getBoundingBox());
+        return getContainedSpans().toPoints();
+    }
+
+    /**
+     * Contained points as spans, the same points getContainedPoints returns. Fills the contour
+     * points as a polygon with ScanlineFill.
+     *
+     * @return
+     */
+    public SpanSet getContainedSpans() {
+        int count = getPointCount();
+        int[] xs = new int[count];
+        int[] ys = new int[count];
+        fillPoints(xs, ys);
+        return ScanlineFill.fill(xs, ys, count, getBoundingBox());
+    }
+
+    /**
+     * The contour points as spans, a point visited twice is kept once
+     *
+     * @return
+     */
+    public SpanSet getContourSpans() {
+        int count = getPointCount();
+        int[] xs = new int[count];
+        int[] ys = new int[count];
+        fillPoints(xs, ys);
+        return SpanSet.fromPoints(xs, ys, count);
+    }
+
+    /**
+     * Moments up to the third order of the points getPoints returns, from the contour alone. The
+     * contour points are added one by one and the contained points by ScanlineFill, which only
+     * goes through the crossings of the contour with each row.
+     *
+     * @return
+     */
+    public MomentAccumulator getMoments() {
+        Rect bounds = getBoundingBox();
+        MomentAccumulator moments = new MomentAccumulator(bounds.left, bounds.top);
+        int count = getPointCount();
+        int[] xs = new int[count];
+        int[] ys = new int[count];
+        fillPoints(xs, ys);
+        for (int i = 0; i < count; i++)
+            moments.add(xs[i], ys[i]);
+        ScanlineFill.accumulate(xs, ys, count, bounds, moments);
+        return moments;
+    }
+
+    private void fillPoints(int[] xs, int[] ys) {
+        PointCursor cursor = cursor();
+        for (int i = 0; cursor.next(); i++) {
+            xs[i] = cursor.getX();
+            ys[i] = cursor.getY();
+        }
+    }
+
+    /**
+     * Number of points getContourPoints returns
+     *
+     * @return
+     */
+    public int getPointCount() {
+        return codeCount == 1 ? 2 : Math.max(codeCount, 1);
     }
 
     public List<Point> getPoints() {
@@ -502,28 +662,46 @@ public final class Contour extends Observable {
     }
 
     public Rect getBoundingBox() {
-        if (bounds == null)
-            bounds = MathUtility.boundingBox(getContourPoints());
+        if (bounds == null) {
+            int left = (int) 1E6;
+            int right = (int) -1E6;
+            int top = (int) 1E6;
+            int bottom = (int) -1E6;
+            PointCursor cursor = cursor();
+            while (cursor.next()) {
+                int x = cursor.getX();
+                int y = cursor.getY();
+                if (x < left)
+                    left = x;
+                if (x > right)
+                    right = x;
+                if (y < top)
+                    top = y;
+                if (y > bottom)
+                    bottom = y;
+            }
+            bounds = new Rect(left, top, right, bottom);
+        }
         return bounds;
     }
 
     /**
-     * Whether the point is contained or not. This method uses getContainedPoints
+     * Whether the point is contained or not. This method uses getContainedSpans
      *
      * @param p
      * @return
      */
     public boolean isContained(Point point) {
-        List<Point> points = getPoints();
-        return isContained(point, points);
+        PointCursor cursor = cursor();
+        while (cursor.next())
+            if (cursor.getX() == point.x && cursor.getY() == point.y)
+                return true;
+        return getContainedSpans().contains(point);
     }
 
     @Override
     public Contour clone() {
-        List<Byte> codes = new ArrayList<Byte>();
-        for (byte c : this.codes)
-            codes.add(c);
-        return new Contour(startPoint.clone(), codes, marshDirection);
+        return new Contour(startPoint.clone(), codes, codeCount, marshDirection);
     }
 
     @Override
@@ -549,6 +727,133 @@ public final class Contour extends Observable {
         this.marshDirection = marshDirection;
     }
 
+    private void checkNotSealed() {
+        if (sealed)
+            throw new IllegalStateException("Contour is sealed.");
+    }
+
+    /**
+     * Walks the points of the contour in place. The start point comes first and every following
+     * point applies the next chain code, skipping the first code, which links the last point back
+     * to the start.
+     */
+    public final class PointCursor {
+
+        private int x = 0;
+        private int y = 0;
+        private int next = -1;
+
+        private PointCursor() {
+        }
+
+        /**
+         * Moves to the next point
+         *
+         * @return false once every point has been visited
+         */
+        public boolean next() {
+            if (next < 0) {
+                x = startPoint.x;
+                y = startPoint.y;
+                next = codeCount == 1 ? 0 : 1;
+                return true;
+            }
+            if (next >= codeCount)
+                return false;
+            switch (codes[next++]) {
+                case 0:
+                    x++;
+                    break;
+                case 1:
+                    x++;
+                    y--;
+                    break;
+                case 2:
+                    y--;
+                    break;
+                case 3:
+                    x--;
+                    y--;
+                    break;
+                case 4:
+                    x--;
+                    break;
+                case 5:
+                    x--;
+                    y++;
+                    break;
+                case 6:
+                    y++;
+                    break;
+                case 7:
+                    x++;
+                    y++;
+                    break;
+                default:
+            }
+            return true;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+    }
+
+    /**
+     * List view of the code array
+     */
+    private final class CodeList extends AbstractList<Byte> {
+
+        @Override
+        public Byte get(int index) {
+            return getCode(index);
+        }
+
+        @Override
+        public int size() {
+            return codeCount;
+        }
+
+        @Override
+        public Byte set(int index, Byte code) {
+            checkNotSealed();
+            byte previous = getCode(index);
+            codes[index] = code;
+            bounds = null;
+            return previous;
+        }
+
+        @Override
+        public void add(int index, Byte code) {
+            checkNotSealed();
+            if (index < 0 || index > codeCount)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + codeCount);
+            if (codeCount == codes.length)
+                codes = Arrays.copyOf(codes, 2 * codes.length);
+            System.arraycopy(codes, index, codes, index + 1, codeCount - index);
+            codes[index] = code;
+            codeCount++;
+            bounds = null;
+            modCount++;
+        }
+
+        @Override
+        public Byte remove(int index) {
+            checkNotSealed();
+            byte previous = getCode(index);
+            System.arraycopy(codes, index + 1, codes, index, codeCount - index - 1);
+            codeCount--;
+            bounds = null;
+            modCount++;
+            return previous;
+        }
+    }
+
     public static enum ChainCode {
         East,            //0
         NorthEast,        //1
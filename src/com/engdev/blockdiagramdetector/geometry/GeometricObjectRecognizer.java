@@ -11,16 +11,15 @@ package com.engdev.blockdiagramdetector.geometry;
 
 import android.graphics.Rect;
 import com.engdev.blockdiagramdetector.database.Database;
-import com.engdev.blockdiagramdetector.database.ObjectStatistics;
-import com.engdev.blockdiagramdetector.database.Statistics;
+import com.engdev.blockdiagramdetector.database.StatisticsModel;
+import com.engdev.blockdiagramdetector.database.StatisticsModel.ClassModel;
+import com.engdev.blockdiagramdetector.database.StatisticsModel.Feature;
+import com.engdev.blockdiagramdetector.database.StatisticsModel.ObjectClass;
 import com.engdev.blockdiagramdetector.geometry.Arrow.PointerDirection;
 import com.engdev.blockdiagramdetector.geometry.GeometricObject.GeometricObjectType;
-import com.engdev.blockdiagramdetector.math.MathUtility;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 
 /**
@@ -33,6 +32,8 @@ public abstract class GeometricObjectRecognizer {
     private final static int NOISE_AREA_THRESHOLD = 10;
     private final static int NOISE_PERIMETER_THRESHOLD = 5;
 
+    private static volatile CascadeRecognizer cascade = null;
+
     public static GeometricObject createObject(Region region, GeometricObjectType objectType) {
         GeometricObject object = null;
         Rect bounds = region.getContour().getBoundingBox();
@@ -134,24 +135,44 @@ public abstract class GeometricObjectRecognizer {
     }
 
     /**
-     * Regions classifier.
+     * Regions classifier. Ellipses, rectangles, bars and characters are tested in this order by
+     * the cascade of getCascade.
      *
      * @param region
      * @return
      */
     public static GeometricObject recognize(Region region) {
-        GeometricObject object = null;
+        return getCascade().recognize(region);
+    }
 
-        if ((object = recognizeEllipse(region)) != null)
-            return object;
-        else if ((object = recognizeRectangle(region)) != null)
-            return object;
-        else if ((object = recognizeBar(region)) != null)
-            return object;
-        else if ((object = recognizeCharacter(region)) != null)
-            return object;
+    /**
+     * Cascade recognize uses, built for the statistics the database has loaded. Only building
+     * a new one takes the lock, so regions are recognized in parallel without contention.
+     *
+     * @return
+     */
+    public static CascadeRecognizer getCascade() {
+        StatisticsModel model = Database.getModel();
+        CascadeRecognizer current = cascade;
+        if (current != null && current.getModel() == model)
+            return current;
+        synchronized (GeometricObjectRecognizer.class) {
+            if (cascade == null || cascade.getModel() != model)
+                cascade = new CascadeRecognizer(model);
+            return cascade;
+        }
+    }
 
-        return object;
+    /**
+     * Sets the cascade recognize uses, a trained one for instance. It is replaced by a new one
+     * when the database loads other statistics.
+     *
+     * @param cascade
+     */
+    public static synchronized void setCascade(CascadeRecognizer cascade) {
+        if (cascade == null)
+            throw new IllegalArgumentException("Cascade cannot be null.");
+        GeometricObjectRecognizer.cascade = cascade;
     }
 
     /**
@@ -161,13 +182,13 @@ public abstract class GeometricObjectRecognizer {
      * @return
      */
     public static Rectangle recognizeRectangle(Region region) {
-        Rectangle rect = null;
+        return recognizeRectangle(region, Database.getModel());
+    }
 
-        // Gets points and rotated them to be in level
-        Set<Point> points = region.getPoints();
-        points = MathUtility.rotate(points, -region.orientation());
+    static Rectangle recognizeRectangle(Region region, StatisticsModel model) {
+        Rectangle rect = null;
 
-        // Gets bounding box for rotated points
+        // Gets bounding box
         Rect bounds = region.getContour().getBoundingBox();
 
         // Compactness
@@ -177,15 +198,15 @@ public abstract class GeometricObjectRecognizer {
         double[] hu = region.huMoments();
 
         // Gets circularity
-        Map<String, Statistics> randomVars = Database.getObjectStatistics("rectangle").randomVars;
+        ClassModel stats = model.getObject(ObjectClass.Rectangle);
 
         // Threshold
-        float threshold = Database.getStatisticsThreshold();
+        float threshold = model.getThreshold();
 
         // Determines whether parameters satisfy the acceptance interval for the joint pdf
-        float z = (compactness - randomVars.get("compactness").mean) / (randomVars.get("compactness").stdev);
+        float z = (compactness - stats.getMean(Feature.Compactness)) * stats.getInvStdev(Feature.Compactness);
         boolean sentence = z >= -threshold && z <= threshold;
-        z = (float) ((hu[0] - randomVars.get("phi1").mean) / randomVars.get("phi1").stdev);
+        z = (float) ((hu[0] - stats.getMean(Feature.Phi1)) * stats.getInvStdev(Feature.Phi1));
         sentence = z >= -threshold && z <= threshold;
 
 
@@ -202,6 +223,10 @@ public abstract class GeometricObjectRecognizer {
      * @return
      */
     public static Bar recognizeBar(Region region) {
+        return recognizeBar(region, Database.getModel());
+    }
+
+    static Bar recognizeBar(Region region, StatisticsModel model) {
         Bar bar = null;
 
         // Gets points and rotated them to be in level
@@ -211,15 +236,15 @@ public abstract class GeometricObjectRecognizer {
         float compactness = region.compactness();
 
         // Gets circularity
-        Map<String, Statistics> randomVars = Database.getObjectStatistics("bar").randomVars;
+        ClassModel stats = model.getObject(ObjectClass.Bar);
 
         // Threshold
-        float threshold = Database.getStatisticsThreshold();
+        float threshold = model.getThreshold();
 
         // Determines whether parameters satisfy the acceptance interval for the joint pdf
-        float z = (compactness - randomVars.get("compactness").mean) / (randomVars.get("compactness").stdev);
+        float z = (compactness - stats.getMean(Feature.Compactness)) * stats.getInvStdev(Feature.Compactness);
         boolean sentence = z >= -threshold && z <= threshold;
-        z = (float) ((hu[0] - randomVars.get("phi1").mean) / randomVars.get("phi1").stdev);
+        z = (float) ((hu[0] - stats.getMean(Feature.Phi1)) * stats.getInvStdev(Feature.Phi1));
         sentence = z >= -threshold && z <= threshold;
 
         if (sentence)
@@ -235,19 +260,23 @@ public abstract class GeometricObjectRecognizer {
      * @return
      */
     public static Ellipse recognizeEllipse(Region region) {
+        return recognizeEllipse(region, Database.getModel());
+    }
+
+    static Ellipse recognizeEllipse(Region region, StatisticsModel model) {
         Ellipse ellipse = null;
 
         // Gets circularity
         float circularity = region.circularity();
 
         // Gets random vars
-        Map<String, Statistics> randomVars = Database.getObjectStatistics("ellipse").randomVars;
+        ClassModel stats = model.getObject(ObjectClass.Ellipse);
 
         // Threshold
-        float threshold = Database.getStatisticsThreshold();
+        float threshold = model.getThreshold();
 
         // Determines whether parameters satisfy the acceptance interval, meaning accptance of null hypothesis
-        float z = (circularity - randomVars.get("circularity").mean) / (randomVars.get("circularity").stdev);
+        float z = (circularity - stats.getMean(Feature.Circularity)) * stats.getInvStdev(Feature.Circularity);
         boolean sentence = z >= -threshold && z <= threshold;
 
         if (sentence)
@@ -263,141 +292,94 @@ public abstract class GeometricObjectRecognizer {
      * @return
      */
     public static Character recognizeCharacter(Region region) {
+        return recognizeCharacter(RegionFeatures.extract(region));
+    }
+
+    /**
+     * Recognize characters by hypothesis test on the features of a region
+     *
+     * @param features
+     * @return
+     */
+    public static Character recognizeCharacter(RegionFeatures features) {
 
         Character character = null;
 
         // Gets statiscs data
-        List<ObjectStatistics> charsStats = Database.getCharactersStatistics();
-
-        // Gets points and rotated them to be in level
-        Set<Point> points = region.getPoints();
-        points = MathUtility.rotate(points, -region.orientation());
-
-        // Gets bounding box
-        Rect bounds = region.getContour().getBoundingBox();
+        List<ClassModel> charsStats = Database.getModel().getCharacters();
 
-        points = MathUtility.rotate(points, -region.orientation());
-        Rect rotBounds = MathUtility.boundingBox(points);
-        double[] hu = region.huMoments();
-        Point centroid = region.centroid();
-        float compactness = region.compactness();
-        float circularity = region.circularity();
-        float perimeter = region.perimeter();
-        float radius = region.getMaxRadius() / perimeter;
-        float filling = region.area() / (rotBounds.width() * rotBounds.height());
-
-        List<ObjectStatistics> recognitions = new ArrayList<ObjectStatistics>();
-        boolean sentence = false;
+        // Threshold
+        float threshold = Database.getModel().getThreshold();
 
-        for (ObjectStatistics charsStat : charsStats) {
-            Map<String, Statistics> randomVars = charsStat.randomVars;
-            sentence = testHypothesis(points, rotBounds, bounds, hu, centroid,
-                    compactness, circularity, perimeter, radius, filling, randomVars);
+        float[] values = features.getValues();
+        List<ClassModel> recognitions = new ArrayList<ClassModel>();
 
-            if (sentence)
+        for (int i = 0; i < charsStats.size(); i++) {
+            ClassModel charsStat = charsStats.get(i);
+            if (testHypothesis(values, charsStat, threshold))
                 recognitions.add(charsStat);
-
         }
 
         if (recognitions.size() == 1)
-            character = new Character(bounds, recognitions.get(0).text, centroid);
+            character = new Character(features.getBounds(), recognitions.get(0).getText(), features.getCentroid());
         else if (recognitions.size() > 1)
-            character = recognizeCharacterByEculidian(region, recognitions);
+            character = recognizeCharacterByEculidian(features, recognitions);
 
         return character;
     }
 
     /**
-     * Tests hypothesis for given test random variables in comparison to trained random variables
+     * Tests hypothesis for given test random variables in comparison to trained random variables.
+     * Phi1 starts the test and circularity starts it again, the other variables must agree with
+     * the last one that started it. Compactness is scaled by its mean instead of its stdev.
      *
-     * @param points
-     * @param rotBounds
-     * @param bounds
-     * @param hu
-     * @param centroid
-     * @param compactness
-     * @param circularity
-     * @param perimeter
-     * @param radius
-     * @param filling
-     * @param randomVars
+     * @param values    features of the region, indexed by the ordinal of Feature
+     * @param stats
+     * @param threshold
      * @return
      */
-    private static boolean testHypothesis(Set<Point> points,
-                                          Rect rotBounds,
-                                          Rect bounds,
-                                          double[] hu,
-                                          Point centroid,
-                                          float compactness,
-                                          float circularity,
-                                          float perimeter,
-                                          float radius,
-                                          float filling,
-                                          Map<String, Statistics> randomVars) {
-
-        float z = 0;
-        boolean sentence = false;
-        float cxLocation = (bounds.right - centroid.x) / (float) bounds.width();
-        float cyLocation = (bounds.bottom - centroid.y) / (float) bounds.height();
-
-        // Threshold
-        float threshold = Database.getStatisticsThreshold();
-
-        if (randomVars.containsKey("phi1")) {
-            z = (float) ((hu[0] - randomVars.get("phi1").mean) / randomVars.get("phi1").stdev);
-            sentence = z >= -threshold && z <= threshold;
-        }
+    private static boolean testHypothesis(float[] values, ClassModel stats, float threshold) {
 
-        if (randomVars.containsKey("phi2")) {
-            z = (float) ((hu[1] - randomVars.get("phi2").mean) / randomVars.get("phi2").stdev);
-            sentence &= z >= -threshold && z <= threshold;
-        }
-
-        if (randomVars.containsKey("phi3")) {
-            z = (float) ((hu[2] - randomVars.get("phi3").mean) / randomVars.get("phi3").stdev);
-            sentence &= z >= -threshold && z <= threshold;
-        }
-
-        if (randomVars.containsKey("centroid_x")) {
-            z = (float) ((cxLocation - randomVars.get("centroid_x").mean) / randomVars.get("centroid_x").stdev);
-            sentence &= z >= -threshold && z <= threshold;
-        }
-
-        if (randomVars.containsKey("centroid_y")) {
-            z = (float) ((cyLocation - randomVars.get("centroid_y").mean) / randomVars.get("centroid_y").stdev);
-            sentence &= z >= -threshold && z <= threshold;
-        }
-
-        if (randomVars.containsKey("radius")) {
-            z = (float) ((radius - randomVars.get("radius").mean) / randomVars.get("radius").stdev);
-            sentence &= z >= -threshold && z <= threshold;
-        }
+        boolean sentence = false;
 
-        if (randomVars.containsKey("circularity")) {
-            z = (circularity - randomVars.get("circularity").mean) / (randomVars.get("circularity").stdev);
-            sentence = z >= -threshold && z <= threshold;
-        }
+        for (Feature feature : RegionFeatures.FEATURES) {
+            if (!stats.has(feature))
+                continue;
 
-        if (randomVars.containsKey("filling")) {
-            z = (float) ((filling - randomVars.get("filling").mean) / randomVars.get("filling").stdev);
-            sentence &= z >= -threshold && z <= threshold;
-        }
+            boolean accepted = acceptsFeature(values[feature.ordinal()], stats, feature, threshold);
 
-        if (randomVars.containsKey("compactness")) {
-            z = (float) ((compactness - randomVars.get("compactness").mean) / randomVars.get("compactness").mean);
-            sentence &= z >= -threshold && z <= threshold;
+            if (feature == Feature.Phi1 || feature == Feature.Circularity)
+                sentence = accepted;
+            else
+                sentence &= accepted;
         }
 
         return sentence;
     }
 
+    /**
+     * Whether the z score of a feature of a region lies in the acceptance interval of a class
+     *
+     * @param value
+     * @param stats
+     * @param feature
+     * @param threshold
+     * @return
+     */
+    static boolean acceptsFeature(float value, ClassModel stats, Feature feature, float threshold) {
+        float mean = stats.getMean(feature);
+        float z = feature == Feature.Compactness ? (value - mean) / mean : (value - mean) * stats.getInvStdev(feature);
+        return z >= -threshold && z <= threshold;
+    }
+
     /**
      * Recognize characters by Euculidian distance
      *
-     * @param region
+     * @param features
+     * @param charsStats
      * @return
      */
-    private static Character recognizeCharacterByEculidian(Region region, List<ObjectStatistics> charsStats) {
+    static Character recognizeCharacterByEculidian(RegionFeatures features, List<ClassModel> charsStats) {
 
         // Map of distances
         float minDistance = 1E9F;
@@ -405,93 +387,38 @@ public abstract class GeometricObjectRecognizer {
         // Char Text
         String charText = null;
 
-        //Get bounds
-        Rect bounds = region.getContour().getBoundingBox();
-
-        // Center of mass
-        Point centroid = region.centroid();
-
-        for (ObjectStatistics charsStat : charsStats) {
-            Map<String, Statistics> randomVars = charsStat.randomVars;
-            float distance = getEculidianDistance(region, randomVars);
+        for (int i = 0; i < charsStats.size(); i++) {
+            ClassModel charsStat = charsStats.get(i);
+            float distance = getEculidianDistance(features, charsStat);
             if (distance < minDistance) {
                 minDistance = distance;
-                charText = charsStat.text;
+                charText = charsStat.getText();
             }
         }
 
-        return new Character(bounds, charText, centroid);
+        return new Character(features.getBounds(), charText, features.getCentroid());
 
     }
 
     /**
-     * Get Eculidian distance between a region and a set of random vars.
+     * Get Eculidian distance between the features of a region and a set of random vars. Only the
+     * features the class has are computed, the filling is the one levelled by a single rotation.
      *
-     * @param region
-     * @param randomVars
+     * @param features
+     * @param stats
      * @return
      */
-    private static float getEculidianDistance(Region region, Map<String, Statistics> randomVars) {
+    static float getEculidianDistance(RegionFeatures features, ClassModel stats) {
 
-        Set<Point> points = region.getPoints();
-        points = MathUtility.rotate(points, -region.orientation());
-        Rect rotBounds = MathUtility.boundingBox(points);
-        Rect bounds = region.getContour().getBoundingBox();
-        double[] hu = region.huMoments();
-        Point centroid = region.centroid();
-        float compactness = region.compactness();
-        float circularity = region.circularity();
         float diff = 0;
-        float perimeter = region.perimeter();
-        float cxLocation = (bounds.right - centroid.x) / (float) bounds.width();
-        float cyLocation = (bounds.bottom - centroid.y) / (float) bounds.height();
-        float radius = region.getMaxRadius() / perimeter;
         float distance = 0;
-        float filling = region.area() / (rotBounds.width() * rotBounds.height());
-
-        if (randomVars.containsKey("phi1")) {
-            diff = (float) hu[0] - randomVars.get("phi1").mean;
-            distance += Math.pow(diff, 2);
-        }
-
-        if (randomVars.containsKey("phi2")) {
-            diff = (float) hu[1] - randomVars.get("phi2").mean;
-            distance += Math.pow(diff, 2);
-        }
-
-        if (randomVars.containsKey("phi3")) {
-            diff = (float) hu[2] - randomVars.get("phi3").mean;
-            distance += Math.pow(diff, 2);
-        }
 
-        if (randomVars.containsKey("centroid_x")) {
-            diff = (float) cxLocation - randomVars.get("centroid_x").mean;
-            distance += Math.pow(diff, 2);
-        }
-
-        if (randomVars.containsKey("centroid_y")) {
-            diff = (float) cyLocation - randomVars.get("centroid_y").mean;
-            distance += Math.pow(diff, 2);
-        }
-
-        if (randomVars.containsKey("radius")) {
-            diff = (float) radius - randomVars.get("radius").mean;
-            distance += Math.pow(diff, 2);
-        }
-
-        if (randomVars.containsKey("circularity")) {
-            diff = circularity - randomVars.get("circularity").mean;
-            distance += Math.pow(diff, 2);
-        }
-
-        if (randomVars.containsKey("filling")) {
-            diff = filling - randomVars.get("filling").mean;
-            distance += Math.pow(diff, 2);
-        }
-
-        if (randomVars.containsKey("compactness")) {
-            diff = compactness - randomVars.get("compactness").mean;
-            distance += Math.pow(diff, 2);
+        for (Feature feature : RegionFeatures.FEATURES) {
+            if (stats.has(feature)) {
+                float value = feature == Feature.Filling ? features.getLevelFilling() : features.get(feature);
+                diff = value - stats.getMean(feature);
+                distance += Math.pow(diff, 2);
+            }
         }
 
         return distance;
@@ -525,14 +452,14 @@ public abstract class GeometricObjectRecognizer {
         float perimeterDiff = Math.abs((outerPerimeter - innerPerimeter) / outerPerimeter);
 
         // Gets random vars
-        Map<String, Statistics> randomVars = Database.getObjectStatistics("inner_contour_region").randomVars;
+        ClassModel stats = Database.getModel().getObject(ObjectClass.InnerContourRegion);
 
         // Threshold
-        float threshold = Database.getStatisticsThreshold();
+        float threshold = Database.getModel().getThreshold();
 
-        float z = (areaDiff - randomVars.get("filling_area").mean) / (randomVars.get("filling_area").stdev);
+        float z = (areaDiff - stats.getMean(Feature.FillingArea)) * stats.getInvStdev(Feature.FillingArea);
         boolean sentence = z >= -threshold && z <= threshold;
-        z = (float) ((perimeterDiff - randomVars.get("filling_perimeter").mean) / randomVars.get("filling_perimeter").stdev);
+        z = (float) ((perimeterDiff - stats.getMean(Feature.FillingPerimeter)) * stats.getInvStdev(Feature.FillingPerimeter));
         sentence = z >= -threshold && z <= threshold;
 
         return sentence;
@@ -554,14 +481,14 @@ public abstract class GeometricObjectRecognizer {
         float centroidXDiff = Math.abs(outerCentroid.x - innerCentroid.x) / (bounds.width() * 1.0F);
 
         // Gets random vars
-        Map<String, Statistics> randomVars = Database.getObjectStatistics("division_symbol").randomVars;
+        ClassModel stats = Database.getModel().getObject(ObjectClass.DivisionSymbol);
 
         // Threshold
-        float threshold = Database.getStatisticsThreshold();
+        float threshold = Database.getModel().getThreshold();
 
-        float z = (centroidYDiff - randomVars.get("centroid_y").mean) / (randomVars.get("centroid_y").stdev);
+        float z = (centroidYDiff - stats.getMean(Feature.CentroidY)) * stats.getInvStdev(Feature.CentroidY);
         boolean sentence = z >= -threshold && z <= threshold;
-        z = (float) ((centroidXDiff - randomVars.get("centroid_x").mean) / randomVars.get("centroid_x").stdev);
+        z = (float) ((centroidXDiff - stats.getMean(Feature.CentroidX)) * stats.getInvStdev(Feature.CentroidX));
         sentence = z >= -threshold && z <= threshold;
 
         return sentence;
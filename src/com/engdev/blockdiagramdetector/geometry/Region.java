@@ -13,12 +13,19 @@ import android.graphics.Bitmap;
 import android.graphics.Rect;
 import com.engdev.blockdiagramdetector.imageprocessing.ImageUtility;
 import com.engdev.blockdiagramdetector.math.MathUtility;
+import com.engdev.blockdiagramdetector.math.MomentAccumulator;
 
 import java.util.*;
 
 /**
  * Represents a geometric region. It is immutable although operation on points can still be performed.
  * Future releases will make this region mutable.
+ * <p/>
+ * The points of the region are its contour points, walked from the chain code, and the contained
+ * points, kept as spans. Points of the inner regions are taken out of both. Moments and the shape
+ * features derived from them come from the filled contour, only the area of the empty regions is
+ * subtracted. Building the points and the moments is synchronized, so regions sharing inner
+ * regions can be recognized by different threads once tracing is over.
  *
  * @author Lucas Batista
  */
@@ -28,7 +35,12 @@ public final class Region implements Observer {
     public final static int DEFAULT_NUMBER_OF_SECTORS = 4;
     private Contour contour = null;
     private List<Region> innerRegions = null;
-    private Set<Point> points = null;
+    private SpanSet containedSpans = null;
+    private SpanSet holeSpans = null;
+    private SpanSet spans = null;
+    private SpanSet filledSpans = null;
+    private int contourPointCount = 0;
+    private MomentAccumulator moments = null;
     private boolean isEmptyRegion = false;
     private RegionState state = null;
     private FeatureVector featureVector = null;
@@ -94,9 +106,8 @@ public final class Region implements Observer {
 
         Rect bounds = region.getContour().getBoundingBox();
         int[] pixels = new int[(bounds.width() + 1) * (bounds.height() + 1)];
-        Set<Point> points = region.getPoints();
         int index = 0;
-        for (Point point : points) {
+        for (Point point : region.pointView()) {
             int x = point.x - bounds.left;
             int y = point.y - bounds.top;
             index = ImageUtility.getIndex(x, y, bounds.width());
@@ -112,39 +123,105 @@ public final class Region implements Observer {
      * @return
      */
     public static Region createRegion(Contour contour) {
-        return new Region(contour.clone());
+        Contour sealed = contour.clone();
+        sealed.seal();
+        return new Region(sealed);
     }
 
     /**
      * Builds Region points.
      */
     private void buildPoints() {
-        points = new HashSet<Point>(contour.getPoints());
+        containedSpans = contour.getContainedSpans();
+        holeSpans = null;
+        for (Region region : innerRegions) {
+            SpanSet spans = region.getSpans();
+            holeSpans = holeSpans == null ? spans : SpanSet.union(holeSpans, spans);
+        }
+        contourPointCount = contour.getPointCount();
+        if (holeSpans != null) {
+            containedSpans = SpanSet.difference(containedSpans, holeSpans);
+            contourPointCount = 0;
+            Contour.PointCursor cursor = contour.cursor();
+            while (cursor.next())
+                if (!holeSpans.contains(cursor.getX(), cursor.getY()))
+                    contourPointCount++;
+        }
+        spans = null;
         state = RegionState.Built;
     }
 
     /**
      * Fetch points from contour is case the cache is invalid
      */
-    private void fetchPoints() {
+    private synchronized void fetchPoints() {
         if (state == RegionState.Partial)
             buildPoints();
     }
 
     /**
-     * Get Points from the region. Lazy method will defer points filling until it is empty
+     * Fetches the moments from the contour in case the cache is invalid, the points are not built
+     */
+    private synchronized void fetchMoments() {
+        if (moments == null)
+            moments = contour.getMoments();
+    }
+
+    /**
+     * Get Points from the region without the points of its inner regions. The set is built on each
+     * call, use getSpans or the features of the region where possible.
      *
      * @return
      */
     public Set<Point> getPoints() {
-        if (state == RegionState.Partial) {
-            buildPoints();
-            for (Region region : innerRegions) {
-                Set<Point> intersectionPoints = MathUtility.intersection(points, region.getPoints());
-                points.removeAll(intersectionPoints);
-            }
+        return new HashSet<Point>(pointView());
+    }
+
+    /**
+     * Points of the region as spans without the points of its inner regions, a point is kept once
+     * even if the contour visits it twice. The spans are cached by the region and must not be
+     * modified.
+     *
+     * @return
+     */
+    public SpanSet getSpans() {
+        return fetchSpans();
+    }
+
+    /**
+     * Builds the spans in case the cache is invalid
+     */
+    private synchronized SpanSet fetchSpans() {
+        fetchPoints();
+        if (spans == null) {
+            SpanSet contourSpans = contour.getContourSpans();
+            if (holeSpans != null)
+                contourSpans = SpanSet.difference(contourSpans, holeSpans);
+            spans = SpanSet.union(contourSpans, containedSpans);
         }
-        return points;
+        return spans;
+    }
+
+    /**
+     * Points of the filled contour as spans, inner regions included. The shape features are
+     * measured on them as they are on the moments. The spans are cached and must not be modified.
+     *
+     * @return
+     */
+    synchronized SpanSet getFilledSpans() {
+        if (filledSpans == null)
+            filledSpans = SpanSet.union(contour.getContourSpans(), contour.getContainedSpans());
+        return filledSpans;
+    }
+
+    /**
+     * Points of the region without storing them, contour points first
+     *
+     * @return
+     */
+    private Collection<Point> pointView() {
+        fetchPoints();
+        return new PointView();
     }
 
     /**
@@ -162,8 +239,8 @@ public final class Region implements Observer {
      * @return
      */
     public float area() {
-        fetchPoints();
-        float area = points.size();
+        fetchMoments();
+        float area = (float) moments.getArea();
         for (Region region : innerRegions) {
             if (region.isEmptyRegion())
                 area -= region.area();
@@ -180,8 +257,10 @@ public final class Region implements Observer {
      * @return
      */
     public float centralMoment(int p, int q) {
-        fetchPoints();
-        return MathUtility.centralMoment(p, q, points, area());
+        if (p + q > MomentAccumulator.MAX_ORDER)
+            return MathUtility.centralMoment(p, q, pointView(), area());
+        float area = area();
+        return (float) moments.getCentralMoment(p, q, area);
     }
 
     /**
@@ -194,8 +273,10 @@ public final class Region implements Observer {
      * @return
      */
     public double normalCentralMoment(int p, int q) {
-        fetchPoints();
-        return MathUtility.normalCentralMoment(p, q, points, area());
+        if (p + q > MomentAccumulator.MAX_ORDER)
+            return MathUtility.normalCentralMoment(p, q, pointView(), area());
+        float area = area();
+        return moments.getNormalCentralMoment(p, q, area);
     }
 
     /**
@@ -204,7 +285,8 @@ public final class Region implements Observer {
      * @return
      */
     public double[] huMoments() {
-        return MathUtility.huMoments(points, area());
+        float area = area();
+        return moments.getHuMoments(area);
     }
 
     /**
@@ -213,8 +295,8 @@ public final class Region implements Observer {
      * @return
      */
     public float orientation() {
-        fetchPoints();
-        return MathUtility.orientation(points, area());
+        float area = area();
+        return moments.getOrientation(area);
     }
 
     /**
@@ -242,11 +324,8 @@ public final class Region implements Observer {
      * @return
      */
     public Point centroid() {
-        fetchPoints();
         float area = area();
-        float centroidX = MathUtility.moment(1, 0, points) / area;
-        float centroidY = MathUtility.moment(0, 1, points) / area;
-        return new Point((int) centroidX, (int) centroidY);
+        return moments.getCentroid(area);
     }
 
     /**
@@ -259,8 +338,10 @@ public final class Region implements Observer {
      * @return
      */
     public float moment(int p, int q) {
-        fetchPoints();
-        return MathUtility.moment(p, q, points);
+        if (p + q > MomentAccumulator.MAX_ORDER)
+            return MathUtility.moment(p, q, pointView());
+        fetchMoments();
+        return (float) moments.getRawMoment(p, q);
     }
 
     /**
@@ -271,6 +352,7 @@ public final class Region implements Observer {
      */
     public boolean addInnerRegion(Region region) {
         state = RegionState.Partial;
+        moments = null;
         return innerRegions.add(region);
     }
 
@@ -282,13 +364,17 @@ public final class Region implements Observer {
      */
     public boolean removeInnerRegion(Region region) {
         state = RegionState.Partial;
+        moments = null;
         return innerRegions.remove(region);
     }
 
     @Override
     public void update(Observable arg0, Object arg1) {
-        if (arg0.equals(contour))
+        if (arg0.equals(contour)) {
             state = RegionState.Partial;
+            moments = null;
+            filledSpans = null;
+        }
     }
 
     /**
@@ -324,7 +410,7 @@ public final class Region implements Observer {
     public float[] majorAxis() {
         float[] axis = new float[2];
         float area = area();
-        float[] eignValues = MathUtility.eignValues(points, area);
+        float[] eignValues = moments.getEignValues(area);
         axis[0] = (float) (2 * Math.sqrt(eignValues[0] / area));
         axis[1] = (float) (2 * Math.sqrt(eignValues[1] / area));
         return axis;
@@ -336,8 +422,8 @@ public final class Region implements Observer {
      * @return
      */
     public float eccentricity() {
-        fetchPoints();
-        return MathUtility.eccentricity(points, area());
+        float area = area();
+        return moments.getEccentricity(area);
     }
 
     public float getMaxRadius() {
@@ -346,7 +432,7 @@ public final class Region implements Observer {
 
     @Override
     public Region clone() {
-        return new Region(contour.clone());
+        return createRegion(contour);
     }
 
     @Override
@@ -354,22 +440,24 @@ public final class Region implements Observer {
 
         boolean equals = true;
 
-        if (object instanceof Region) {
-            Set<Point> thisPoints = getPoints();
-            Set<Point> thatPoints = ((Region) object).getPoints();
-            if (thisPoints.size() == thatPoints.size()) {
-                for (Point p : thisPoints)
-                    equals &= thatPoints.contains(p);
-            } else
-                equals = false;
+        if (object == this)
+            equals = true;
+        else if (object instanceof Region) {
+            Region that = (Region) object;
+            equals = area() == that.area() && fetchSpans().equals(that.fetchSpans());
         } else
             equals = false;
 
         return equals;
     }
 
+    @Override
+    public int hashCode() {
+        return fetchSpans().hashCode();
+    }
+
     /**
-     * Gets the reference of its contour. Any change on its contour will cascated back to the region.
+     * Gets the reference of its contour. The contour is sealed, so its chain codes cannot change.
      *
      * @return
      */
@@ -394,6 +482,7 @@ public final class Region implements Observer {
     public void setInnerRegions(List<Region> regions) {
         this.innerRegions = regions;
         state = RegionState.Partial;
+        moments = null;
     }
 
     /**
@@ -446,6 +535,54 @@ public final class Region implements Observer {
         return "{" + bounds.toString() + ", " + centroid + "}";
     }
 
+    /**
+     * Contour points not in a hole followed by the contained points, a new point for each
+     */
+    private final class PointView extends AbstractCollection<Point> {
+
+        @Override
+        public Iterator<Point> iterator() {
+            return new Iterator<Point>() {
+
+                private final Contour.PointCursor cursor = contour.cursor();
+                private final Iterator<Point> contained = containedSpans.iterator();
+                private Point next = advance();
+
+                private Point advance() {
+                    while (cursor.next()) {
+                        if (holeSpans == null || !holeSpans.contains(cursor.getX(), cursor.getY()))
+                            return new Point(cursor.getX(), cursor.getY());
+                    }
+                    return contained.hasNext() ? contained.next() : null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public Point next() {
+                    if (next == null)
+                        throw new NoSuchElementException();
+                    Point point = next;
+                    next = advance();
+                    return point;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return contourPointCount + containedSpans.area();
+        }
+    }
+
     public static enum RegionState {
         Built,
         Partial
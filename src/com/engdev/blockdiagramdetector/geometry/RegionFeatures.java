@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.geometry;
+
+import android.graphics.Rect;
+import com.engdev.blockdiagramdetector.database.StatisticsModel.Feature;
+
+/**
+ * Features of a region the recognizer compares with the database, extracted once into a dense
+ * vector laid out by the ordinal of Feature. Testing the region against every class then reads
+ * the vector instead of going through its points again for each class.
+ * <p/>
+ * Each feature is computed the first time it is asked for, so a test rejecting a region on a
+ * cheap feature never pays for the expensive ones. The inner contour features are features of a
+ * pair of regions, they are not extracted and are NaN. Features are not safe to share between
+ * threads until they are all computed, as extract does.
+ *
+ * @author Lucas Batista
+ */
+public final class RegionFeatures {
+
+    /**
+     * Number of features of the vector
+     */
+    public final static int SIZE = Feature.values().length;
+
+    /**
+     * Features extracted from a single region, in the order of the vector
+     */
+    public final static Feature[] FEATURES = {
+            Feature.Phi1,
+            Feature.Phi2,
+            Feature.Phi3,
+            Feature.CentroidX,
+            Feature.CentroidY,
+            Feature.Radius,
+            Feature.Circularity,
+            Feature.Filling,
+            Feature.Compactness
+    };
+
+    // Relative cost of the features, from the moments, the contour or every pixel of the region
+    private final static float COST_MOMENTS = 1;
+    private final static float COST_CONTOUR = 10;
+    private final static float COST_PIXELS = 100;
+
+    private final Region region;
+    private final float[] values = new float[SIZE];
+    private final boolean[] computed = new boolean[SIZE];
+    private final Rect bounds;
+    private final Point centroid;
+    private double[] hu = null;
+    private SpanSet spans = null;
+    private float levelFilling = 0;
+    private boolean levelComputed = false;
+
+    private RegionFeatures(Region region) {
+        this.region = region;
+        bounds = region.getContour().getBoundingBox();
+        centroid = region.centroid();
+        for (int i = 0; i < SIZE; i++)
+            values[i] = Float.NaN;
+    }
+
+    /**
+     * Features of a region, each computed the first time it is asked for
+     *
+     * @param region
+     * @return
+     */
+    public static RegionFeatures of(Region region) {
+        return new RegionFeatures(region);
+    }
+
+    /**
+     * Extracts every feature of a region. Rotating the region to level it is the only pass
+     * over its points.
+     *
+     * @param region
+     * @return
+     */
+    public static RegionFeatures extract(Region region) {
+        RegionFeatures features = new RegionFeatures(region);
+        for (Feature feature : FEATURES)
+            features.get(feature);
+        features.getLevelFilling();
+        return features;
+    }
+
+    /**
+     * Relative cost of computing a feature once the moments of the region are known
+     *
+     * @param feature
+     * @return
+     */
+    public static float getCost(Feature feature) {
+        switch (feature) {
+            case Radius:
+                return COST_CONTOUR;
+            case Filling:
+                return COST_PIXELS;
+            default:
+                return COST_MOMENTS;
+        }
+    }
+
+    private float compute(Feature feature) {
+        switch (feature) {
+            case Phi1:
+                return (float) getHuMoments()[0];
+            case Phi2:
+                return (float) getHuMoments()[1];
+            case Phi3:
+                return (float) getHuMoments()[2];
+            case CentroidX:
+                return (bounds.right - centroid.x) / (float) bounds.width();
+            case CentroidY:
+                return (bounds.bottom - centroid.y) / (float) bounds.height();
+            case Radius:
+                return region.getMaxRadius() / region.perimeter();
+            case Circularity:
+                return region.circularity();
+            case Filling:
+
+                // The hypothesis test has always levelled the region by rotating it twice and
+                // the distance once, both are kept so that the trained statistics still hold
+                Rect rotBounds = rotateTwiceBoundingBox(getSpans(), -region.orientation());
+                return region.area() / (rotBounds.width() * rotBounds.height());
+            case Compactness:
+                return region.compactness();
+            default:
+                return Float.NaN;
+        }
+    }
+
+    private double[] getHuMoments() {
+        if (hu == null)
+            hu = region.huMoments();
+        return hu;
+    }
+
+    private SpanSet getSpans() {
+        if (spans == null)
+            spans = region.getFilledSpans();
+        return spans;
+    }
+
+    /**
+     * Bounding box of the spans rotated by angle like MathUtility.rotate. Rounding keeps the
+     * order of the points of a row, so the ends of each span bound it.
+     */
+    private static Rect rotateBoundingBox(SpanSet spans, float angle) {
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        int left = (int) 1E6;
+        int right = (int) -1E6;
+        int top = (int) 1E6;
+        int bottom = (int) -1E6;
+
+        for (int i = 0; i < spans.size(); i++) {
+            int y = spans.getY(i);
+            for (int k = 0; k < 2; k++) {
+                int x = k == 0 ? spans.getStart(i) : spans.getEnd(i);
+                int rotX = (int) Math.round(x * cos - y * sin);
+                int rotY = (int) Math.round(x * sin + y * cos);
+                left = Math.min(left, rotX);
+                right = Math.max(right, rotX);
+                top = Math.min(top, rotY);
+                bottom = Math.max(bottom, rotY);
+            }
+        }
+        return new Rect(left, top, right, bottom);
+    }
+
+    /**
+     * Bounding box of the spans rotated twice by angle like MathUtility.rotate, the points
+     * are rounded between both rotations
+     */
+    private static Rect rotateTwiceBoundingBox(SpanSet spans, float angle) {
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        int left = (int) 1E6;
+        int right = (int) -1E6;
+        int top = (int) 1E6;
+        int bottom = (int) -1E6;
+
+        for (int i = 0; i < spans.size(); i++) {
+            int y = spans.getY(i);
+            for (int x = spans.getStart(i); x <= spans.getEnd(i); x++) {
+                int onceX = (int) Math.round(x * cos - y * sin);
+                int onceY = (int) Math.round(x * sin + y * cos);
+                int rotX = (int) Math.round(onceX * cos - onceY * sin);
+                int rotY = (int) Math.round(onceX * sin + onceY * cos);
+                left = Math.min(left, rotX);
+                right = Math.max(right, rotX);
+                top = Math.min(top, rotY);
+                bottom = Math.max(bottom, rotY);
+            }
+        }
+        return new Rect(left, top, right, bottom);
+    }
+
+    /**
+     * @param feature
+     * @return the feature or NaN if it is not extracted from a single region
+     */
+    public float get(Feature feature) {
+        int i = feature.ordinal();
+        if (!computed[i]) {
+            values[i] = compute(feature);
+            computed[i] = true;
+        }
+        return values[i];
+    }
+
+    /**
+     * Copy of the vector, indexed by the ordinal of Feature. Computes every feature.
+     *
+     * @return
+     */
+    public float[] getValues() {
+        for (Feature feature : FEATURES)
+            get(feature);
+        return values.clone();
+    }
+
+    /**
+     * Filling of the region levelled by a single rotation, used by the Euclidean distance
+     *
+     * @return
+     */
+    public float getLevelFilling() {
+        if (!levelComputed) {
+            Rect levelBounds = rotateBoundingBox(getSpans(), -region.orientation());
+            levelFilling = region.area() / (levelBounds.width() * levelBounds.height());
+            levelComputed = true;
+        }
+        return levelFilling;
+    }
+
+    /**
+     * Bounding box of the contour
+     *
+     * @return
+     */
+    public Rect getBounds() {
+        return bounds;
+    }
+
+    public Point getCentroid() {
+        return centroid;
+    }
+
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.geometry;
+
+import com.engdev.blockdiagramdetector.math.MomentAccumulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of pixels stored as horizontal spans. Spans are sorted by row and then by column, never
+ * overlap and never touch, so a row of pixels is one span however long it is. Union and difference
+ * merge the spans of both sets in a single linear pass.
+ *
+ * @author Lucas Batista
+ */
+public final class SpanSet implements Iterable<Point> {
+
+    private final static int INITIAL_CAPACITY = 16;
+
+    // Span i covers x from starts[i] to ends[i], both inclusive, on row ys[i]
+    private int[] ys = null;
+    private int[] starts = null;
+    private int[] ends = null;
+    private int size = 0;
+
+    public SpanSet() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of spans expected
+     */
+    public SpanSet(int capacity) {
+        capacity = Math.max(capacity, 1);
+        ys = new int[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+    }
+
+    /**
+     * Builds the set of the given pixels, duplicates are kept once
+     *
+     * @param xs
+     * @param ys
+     * @param count number of pixels
+     * @return
+     */
+    public static SpanSet fromPoints(int[] xs, int[] ys, int count) {
+
+        // Row in the high bits and column with its sign flipped in the low ones sort row by row
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++)
+            keys[i] = ((long) ys[i] << 32) | ((xs[i] ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+        Arrays.sort(keys);
+        SpanSet spans = new SpanSet(count);
+        for (long key : keys) {
+            int x = (int) key ^ Integer.MIN_VALUE;
+            spans.add((int) (key >> 32), x, x);
+        }
+        return spans;
+    }
+
+    /**
+     * Pixels in either set
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    public static SpanSet union(SpanSet a, SpanSet b) {
+        SpanSet spans = new SpanSet(a.size + b.size);
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            if (j == b.size || i < a.size && (a.ys[i] < b.ys[j]
+                    || a.ys[i] == b.ys[j] && a.starts[i] <= b.starts[j])) {
+                spans.add(a.ys[i], a.starts[i], a.ends[i]);
+                i++;
+            } else {
+                spans.add(b.ys[j], b.starts[j], b.ends[j]);
+                j++;
+            }
+        }
+        return spans;
+    }
+
+    /**
+     * Pixels of a that are not in b
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    public static SpanSet difference(SpanSet a, SpanSet b) {
+        SpanSet spans = new SpanSet(a.size);
+        int j = 0;
+        for (int i = 0; i < a.size; i++) {
+            int y = a.ys[i];
+            int start = a.starts[i];
+            int end = a.ends[i];
+
+            // Skips the spans of b before this one, they are before the next ones too
+            while (j < b.size && (b.ys[j] < y || b.ys[j] == y && b.ends[j] < start))
+                j++;
+            for (int k = j; k < b.size && b.ys[k] == y && b.starts[k] <= end; k++) {
+                if (b.starts[k] > start)
+                    spans.add(y, start, b.starts[k] - 1);
+                start = Math.max(start, b.ends[k] + 1);
+            }
+            if (start <= end)
+                spans.add(y, start, end);
+        }
+        return spans;
+    }
+
+    /**
+     * Appends a span. Spans must be added in order, a span touching or overlapping the last one is
+     * merged with it.
+     *
+     * @param y
+     * @param start first column
+     * @param end   last column
+     */
+    public void add(int y, int start, int end) {
+        if (end < start)
+            throw new IllegalArgumentException("Span end cannot be before its start.");
+        if (size > 0) {
+            int last = size - 1;
+            if (y < ys[last] || y == ys[last] && start < starts[last])
+                throw new IllegalArgumentException("Spans must be added in order.");
+            if (y == ys[last] && start <= ends[last] + 1) {
+                ends[last] = Math.max(ends[last], end);
+                return;
+            }
+        }
+        if (size == ys.length) {
+            ys = Arrays.copyOf(ys, 2 * size);
+            starts = Arrays.copyOf(starts, 2 * size);
+            ends = Arrays.copyOf(ends, 2 * size);
+        }
+        ys[size] = y;
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    /**
+     * Number of spans
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Number of pixels
+     *
+     * @return
+     */
+    public int area() {
+        int area = 0;
+        for (int i = 0; i < size; i++)
+            area += ends[i] - starts[i] + 1;
+        return area;
+    }
+
+    /**
+     * Raw moment, the sum of x^p * y^q over the pixels. Powers up to 3 of each span are summed in
+     * closed form.
+     *
+     * @param p X exponent
+     * @param q Y exponent
+     * @return
+     */
+    public double moment(int p, int q) {
+        double moment = 0;
+        for (int i = 0; i < size; i++)
+            moment += MomentAccumulator.powerSum(p, starts[i], ends[i]) * Math.pow(ys[i], q);
+        return moment;
+    }
+
+    public int getY(int index) {
+        checkIndex(index);
+        return ys[index];
+    }
+
+    public int getStart(int index) {
+        checkIndex(index);
+        return starts[index];
+    }
+
+    public int getEnd(int index) {
+        checkIndex(index);
+        return ends[index];
+    }
+
+    /**
+     * Whether a pixel is in the set. Binary search over the spans.
+     *
+     * @param x
+     * @param y
+     * @return
+     */
+    public boolean contains(int x, int y) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (ys[middle] < y || ys[middle] == y && ends[middle] < x)
+                low = middle + 1;
+            else if (ys[middle] > y || starts[middle] > x)
+                high = middle - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    public boolean contains(Point point) {
+        return contains(point.x, point.y);
+    }
+
+    /**
+     * Builds a point for every pixel, row by row
+     *
+     * @return
+     */
+    public List<Point> toPoints() {
+        List<Point> points = new ArrayList<Point>(area());
+        for (int i = 0; i < size; i++)
+            for (int x = starts[i]; x <= ends[i]; x++)
+                points.add(new Point(x, ys[i]));
+        return points;
+    }
+
+    /**
+     * Iterates over the pixels row by row, a new point for each
+     *
+     * @return
+     */
+    @Override
+    public Iterator<Point> iterator() {
+        return new Iterator<Point>() {
+
+            private int span = 0;
+            private int x = size > 0 ? starts[0] : 0;
+
+            @Override
+            public boolean hasNext() {
+                return span < size;
+            }
+
+            @Override
+            public Point next() {
+                if (span >= size)
+                    throw new NoSuchElementException();
+                Point point = new Point(x, ys[span]);
+                if (x++ == ends[span] && ++span < size)
+                    x = starts[span];
+                return point;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof SpanSet))
+            return false;
+        SpanSet that = (SpanSet) object;
+        if (size != that.size)
+            return false;
+        for (int i = 0; i < size; i++)
+            if (ys[i] != that.ys[i] || starts[i] != that.starts[i] || ends[i] != that.ends[i])
+                return false;
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = size;
+        for (int i = 0; i < size; i++)
+            hash = 31 * (31 * (31 * hash + ys[i]) + starts[i]) + ends[i];
+        return hash;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+}
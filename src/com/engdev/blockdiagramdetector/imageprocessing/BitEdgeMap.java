@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.imageprocessing;
+
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+
+/**
+ * EdgeMap that packs 64 pixels per long. Bits run down the columns, the order tracers scan in,
+ * so a scan can skip 64 empty pixels at a time.
+ * <p/>
+ * A second bitplane holds the explored pixels. Writing the black color marks an edge pixel,
+ * writing the background color clears it and any other color marks it as explored, so an
+ * explored edge pixel is no longer black. ARGB pixels are only built for display, where every
+ * explored pixel gets the explored color.
+ * Pixels outside the map are never black and writes to them are ignored.
+ *
+ * @author Lucas Batista
+ */
+public class BitEdgeMap extends EdgeMap {
+
+    private final static int WORD_BITS = 64;
+    private final static int WORD_SHIFT = 6;
+
+    private long[] black = null;
+    private long[] explored = null;
+    private int exploredColor = 0xFFCCCCCC;
+
+    public BitEdgeMap(int width, int height) {
+        super(width, height);
+        int words = (width * height + WORD_BITS - 1) >> WORD_SHIFT;
+        black = new long[words];
+        explored = new long[words];
+    }
+
+    /**
+     * Packs the black pixels of an edge map
+     *
+     * @param map
+     */
+    public BitEdgeMap(EdgeMap map) {
+        this(map.getWidth(), map.getHeight());
+        setBlackColor(map.getBlackColor());
+        int width = getWidth();
+        int height = getHeight();
+        for (int x = 0; x < width; x++)
+            for (int y = 0; y < height; y++)
+                if (map.isBlack(x, y))
+                    setBit(black, getBitIndex(x, y));
+    }
+
+    /**
+     * Packs the pixels equal to the black color
+     *
+     * @param pixels     row major ARGB pixels
+     * @param width
+     * @param height
+     * @param blackColor
+     */
+    public BitEdgeMap(int[] pixels, int width, int height, int blackColor) {
+        this(width, height);
+        setBlackColor(blackColor);
+        setPixels(pixels);
+    }
+
+    /**
+     * Finds the next unexplored black pixel of a column
+     *
+     * @param x
+     * @param fromY first row searched
+     * @param toY   row after the last one searched
+     * @return the row of the pixel or -1
+     */
+    public int nextBlack(int x, int fromY, int toY) {
+        if (x < 0 || x >= getWidth())
+            return -1;
+        fromY = Math.max(fromY, 0);
+        toY = Math.min(toY, getHeight());
+        if (fromY >= toY)
+            return -1;
+        int column = x * getHeight();
+        int index = nextBlack(column + fromY, column + toY);
+        return index < 0 ? -1 : index - column;
+    }
+
+    /**
+     * Finds the next unexplored black bit, a word at a time
+     *
+     * @param fromIndex first bit searched
+     * @param toIndex   bit after the last one searched
+     * @return the bit or -1
+     */
+    private int nextBlack(int fromIndex, int toIndex) {
+        int word = fromIndex >> WORD_SHIFT;
+        int lastWord = (toIndex - 1) >> WORD_SHIFT;
+        long bits = (black[word] & ~explored[word]) & (-1L << fromIndex);
+        while (true) {
+            if (word == lastWord) {
+                bits &= -1L >>> (WORD_BITS - 1 - ((toIndex - 1) & (WORD_BITS - 1)));
+                return bits == 0 ? -1 : (word << WORD_SHIFT) + Long.numberOfTrailingZeros(bits);
+            }
+            if (bits != 0)
+                return (word << WORD_SHIFT) + Long.numberOfTrailingZeros(bits);
+            word++;
+            bits = black[word] & ~explored[word];
+        }
+    }
+
+    @Override
+    public boolean isBlack(int x, int y) {
+        if (!contains(x, y))
+            return false;
+        int bit = getBitIndex(x, y);
+        return getBit(black, bit) && !getBit(explored, bit);
+    }
+
+    @Override
+    public int getPixel(int x, int y) {
+        if (!contains(x, y))
+            return getBackGroundColorPixel();
+        int bit = getBitIndex(x, y);
+        if (getBit(explored, bit))
+            return exploredColor;
+        return getBit(black, bit) ? getBlackColor() : getBackGroundColorPixel();
+    }
+
+    /**
+     * Index of a pixel in the column major bit order, the one getPixel(int) reads
+     *
+     * @param x
+     * @param y
+     * @return
+     */
+    @Override
+    public int getIndex(int x, int y) {
+        return getBitIndex(x, y);
+    }
+
+    @Override
+    public int getPixel(int index) {
+        if (getBit(explored, index))
+            return exploredColor;
+        return getBit(black, index) ? getBlackColor() : getBackGroundColorPixel();
+    }
+
+    /**
+     * Column of an index in the column major bit order of getIndex
+     *
+     * @param index
+     * @return
+     */
+    @Override
+    public int getX(int index) {
+        return index / getHeight();
+    }
+
+    /**
+     * Row of an index in the column major bit order of getIndex
+     *
+     * @param index
+     * @return
+     */
+    @Override
+    public int getY(int index) {
+        return index % getHeight();
+    }
+
+    @Override
+    public void setPixel(int x, int y, int color) {
+        if (!contains(x, y))
+            return;
+        int bit = getBitIndex(x, y);
+        if (color == getBlackColor()) {
+            setBit(black, bit);
+            clearBit(explored, bit);
+        } else if (color == getBackGroundColorPixel()) {
+            clearBit(black, bit);
+            clearBit(explored, bit);
+        } else
+            setBit(explored, bit);
+    }
+
+    /**
+     * Builds the ARGB pixels, row major. Changes to the array are not written back.
+     *
+     * @return
+     */
+    @Override
+    public int[] getPixels() {
+        int width = getWidth();
+        int height = getHeight();
+        int[] pixels = new int[width * height];
+        for (int y = 0, i = 0; y < height; y++)
+            for (int x = 0; x < width; x++, i++)
+                pixels[i] = getPixel(x, y);
+        return pixels;
+    }
+
+    /**
+     * Packs row major ARGB pixels, clearing the explored plane
+     *
+     * @param pixels
+     */
+    @Override
+    public void setPixels(int[] pixels) {
+        int width = getWidth();
+        int height = getHeight();
+        if (pixels.length < width * height)
+            throw new IllegalArgumentException("Pixels do not fill the map.");
+        Arrays.fill(black, 0L);
+        Arrays.fill(explored, 0L);
+        int blackColor = getBlackColor();
+        for (int y = 0, i = 0; y < height; y++)
+            for (int x = 0; x < width; x++, i++)
+                if (pixels[i] == blackColor)
+                    setBit(black, getBitIndex(x, y));
+    }
+
+    @Override
+    public void normalizeMap(int blackColor, int whiteColor, int searchColor) {
+        if (searchColor != getBlackColor())
+            throw new IllegalArgumentException("Only black pixels are kept by a bit edge map.");
+        setBlackColor(blackColor);
+    }
+
+    @Override
+    public Bitmap createEdgeBitmap() {
+        return Bitmap.createBitmap(getPixels(), getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+    }
+
+    public boolean isExplored(int x, int y) {
+        return contains(x, y) && getBit(explored, getBitIndex(x, y));
+    }
+
+    /**
+     * Adds the explored pixels of a map of the same size
+     *
+     * @param map
+     */
+    public void addExplored(BitEdgeMap map) {
+        if (map.getWidth() != getWidth() || map.getHeight() != getHeight())
+            throw new IllegalArgumentException("Maps must have the same size.");
+        for (int i = 0; i < explored.length; i++)
+            explored[i] |= map.explored[i];
+    }
+
+    /**
+     * Adds the explored pixels of a smaller map lying at an offset of this one
+     *
+     * @param map
+     * @param left column of this map the first column of the other one lies at
+     * @param top  row of this map the first row of the other one lies at
+     */
+    public void addExplored(BitEdgeMap map, int left, int top) {
+        int mapWidth = map.getWidth();
+        int mapHeight = map.getHeight();
+        if (left < 0 || top < 0 || left + mapWidth > getWidth() || top + mapHeight > getHeight())
+            throw new IllegalArgumentException("Map does not lie inside this map.");
+        for (int x = 0, bit = 0; x < mapWidth; x++) {
+            int column = getBitIndex(left + x, top);
+            for (int y = 0; y < mapHeight; y++, bit++)
+                if (getBit(map.explored, bit))
+                    setBit(explored, column + y);
+        }
+    }
+
+    /**
+     * Clears the explored plane
+     */
+    public void clearExplored() {
+        Arrays.fill(explored, 0L);
+    }
+
+    @Override
+    public BitEdgeMap clone() {
+        BitEdgeMap map = new BitEdgeMap(getWidth(), getHeight());
+        map.setBlackColor(getBlackColor());
+        map.exploredColor = exploredColor;
+        System.arraycopy(black, 0, map.black, 0, black.length);
+        System.arraycopy(explored, 0, map.explored, 0, explored.length);
+        return map;
+    }
+
+    /**
+     * Color explored pixels are displayed with
+     *
+     * @return
+     */
+    public int getExploredColor() {
+        return exploredColor;
+    }
+
+    public void setExploredColor(int exploredColor) {
+        this.exploredColor = exploredColor;
+    }
+
+    private boolean contains(int x, int y) {
+        return x >= 0 && y >= 0 && x < getWidth() && y < getHeight();
+    }
+
+    private int getBitIndex(int x, int y) {
+        return x * getHeight() + y;
+    }
+
+    private static boolean getBit(long[] plane, int bit) {
+        return (plane[bit >> WORD_SHIFT] & (1L << bit)) != 0;
+    }
+
+    private static void setBit(long[] plane, int bit) {
+        plane[bit >> WORD_SHIFT] |= 1L << bit;
+    }
+
+    private static void clearBit(long[] plane, int bit) {
+        plane[bit >> WORD_SHIFT] &= ~(1L << bit);
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.imageprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Row source backed by a buffer of raw pixels, either packed ARGB ints in the byte order of the
+ * buffer or one luminance byte per pixel. Mapping a file lets the operating system page the image
+ * in as rows are read, so images larger than the heap can be processed. A file is mapped in
+ * windows of whole rows, so it may be larger than a single buffer can address.
+ *
+ * @author Lucas Batista
+ */
+public class ByteBufferRowSource implements RowSource {
+
+    // Largest window of a mapped file
+    private final static int WINDOW_BYTES = 1 << 26;
+
+    // Band b holds rows b * bandRows onwards, its first pixel at offset
+    private final ByteBuffer[] bands;
+    private final int bandRows;
+    private final int width;
+    private final int height;
+    private final Format format;
+    private final int offset;
+    private final int rowBytes;
+
+    /**
+     * @param buffer
+     * @param width
+     * @param height
+     * @param format
+     * @param offset position of the first pixel in the buffer
+     */
+    public ByteBufferRowSource(ByteBuffer buffer, int width, int height, Format format, int offset) {
+        if (buffer == null || format == null)
+            throw new IllegalArgumentException("Buffer and format cannot be null.");
+        if (width < 0 || height < 0 || offset < 0)
+            throw new IllegalArgumentException("Size and offset cannot be negative.");
+        if ((long) width * height * format.bytesPerPixel + offset > buffer.limit())
+            throw new IllegalArgumentException("Buffer is smaller than the image.");
+        this.bands = new ByteBuffer[]{buffer};
+        this.bandRows = Math.max(height, 1);
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.offset = offset;
+        this.rowBytes = width * format.bytesPerPixel;
+    }
+
+    private ByteBufferRowSource(ByteBuffer[] bands, int bandRows, int width, int height, Format format) {
+        this.bands = bands;
+        this.bandRows = bandRows;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.offset = 0;
+        this.rowBytes = width * format.bytesPerPixel;
+    }
+
+    public ByteBufferRowSource(ByteBuffer buffer, int width, int height, Format format) {
+        this(buffer, width, height, format, 0);
+    }
+
+    /**
+     * Maps a raw image file read only, in windows of whole rows of up to 64 MB. A row larger than
+     * that gets a window of its own.
+     *
+     * @param file
+     * @param width
+     * @param height
+     * @param format
+     * @param offset size of any header before the pixels
+     * @return
+     * @throws IOException
+     */
+    public static ByteBufferRowSource map(File file, int width, int height, Format format, long offset) throws IOException {
+        if (file == null || format == null)
+            throw new IllegalArgumentException("File and format cannot be null.");
+        if (width < 0 || height < 0 || offset < 0)
+            throw new IllegalArgumentException("Size and offset cannot be negative.");
+        long rowBytes = (long) width * format.bytesPerPixel;
+        if (rowBytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Rows are larger than a buffer.");
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (rowBytes * height + offset > channel.size())
+                throw new IllegalArgumentException("File is smaller than the image.");
+            int bandRows = rowBytes == 0 ? Math.max(height, 1) : (int) Math.max(WINDOW_BYTES / rowBytes, 1);
+            ByteBuffer[] bands = new ByteBuffer[(height + bandRows - 1) / bandRows];
+            for (int b = 0; b < bands.length; b++) {
+                int rows = Math.min(bandRows, height - b * bandRows);
+                bands[b] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        offset + b * (long) bandRows * rowBytes, rows * rowBytes);
+            }
+            return new ByteBufferRowSource(bands, bandRows, width, height, format);
+        } finally {
+            // The mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRow(int y, int[] row) {
+        if (y < 0 || y >= height)
+            throw new IllegalArgumentException("Row is outside the image.");
+        ByteBuffer buffer = bands[y / bandRows];
+        int position = offset + y % bandRows * rowBytes;
+        if (format == Format.Argb) {
+            for (int x = 0; x < width; x++, position += 4)
+                row[x] = buffer.getInt(position);
+        } else {
+            for (int x = 0; x < width; x++, position++) {
+                int l = buffer.get(position) & 0xFF;
+                row[x] = 0xFF000000 | (l << 16) | (l << 8) | l;
+            }
+        }
+    }
+
+    public static enum Format {
+        Argb(4),
+        Luminance(1);
+
+        private final int bytesPerPixel;
+
+        private Format(int bytesPerPixel) {
+            this.bytesPerPixel = bytesPerPixel;
+        }
+
+        public int getBytesPerPixel() {
+            return bytesPerPixel;
+        }
+    }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.imageprocessing;
+
+import java.util.Arrays;
+
+/**
+ * Holds the full frame buffers used by the CannyEdgeDetector and the row scratch of each band it
+ * is split into. The buffers are sized once and only grow when a larger frame arrives, so a
+ * workspace passed into repeated detections of frames of the same size allocates no buffers.
+ * A workspace must not be shared by detections running at the same time.
+ *
+ * @author Lucas Batista
+ */
+public final class CannyWorkspace {
+
+    // Buffers
+    int[] pixels = null;
+    int[] magnitude = null;
+    int[] gradDirection = null;
+    float[] xConv = null;
+    float[] yConv = null;
+    float[] xGradient = null;
+    float[] yGradient = null;
+
+    // Fixed point planes, allocated on first use
+    int[] xConvFixed = null;
+    int[] yConvFixed = null;
+    int[] xGradientFixed = null;
+    int[] yGradientFixed = null;
+    int[] gradientMagnitude = null;
+
+    // Hysteresis buffers, allocated on first use
+    int[] links = null;
+    boolean[] strong = null;
+
+    // Contrast normalization and fixed point kernels, allocated on first use
+    int[] histogram = null;
+    int[] contrastRemap = null;
+    int[] fixedKernel = null;
+    int[] fixedDiffKernel = null;
+
+    // Row scratch of each band, allocated on first use
+    private BandBuffers[] bands = null;
+
+    private int capacity = 0;
+
+    public CannyWorkspace() {
+    }
+
+    public CannyWorkspace(int width, int height) {
+        ensureCapacity(width * height);
+    }
+
+    /**
+     * Makes sure buffers hold at least imageSize pixels. Buffers are reallocated only when they are too small.
+     *
+     * @param imageSize
+     * @return true if buffers had to be allocated
+     */
+    public boolean ensureCapacity(int imageSize) {
+        if (imageSize < 0)
+            throw new IllegalArgumentException("Image size cannot be negative.");
+
+        if (imageSize <= capacity)
+            return false;
+
+        pixels = new int[imageSize];
+        magnitude = new int[imageSize];
+        gradDirection = new int[imageSize];
+
+        xConv = new float[imageSize];
+        yConv = new float[imageSize];
+        xGradient = new float[imageSize];
+        yGradient = new float[imageSize];
+
+        capacity = imageSize;
+        return true;
+    }
+
+    /**
+     * Releases the buffers. The next detection will allocate them again.
+     */
+    public void release() {
+        pixels = null;
+        magnitude = null;
+        gradDirection = null;
+        xConv = null;
+        yConv = null;
+        xGradient = null;
+        yGradient = null;
+        xConvFixed = null;
+        yConvFixed = null;
+        xGradientFixed = null;
+        yGradientFixed = null;
+        gradientMagnitude = null;
+        links = null;
+        strong = null;
+        histogram = null;
+        contrastRemap = null;
+        fixedKernel = null;
+        fixedDiffKernel = null;
+        bands = null;
+        capacity = 0;
+    }
+
+    /**
+     * Makes sure the planes of the fixed point pipeline hold the current capacity
+     */
+    void ensureFixedPoint() {
+        if (xConvFixed != null && xConvFixed.length >= capacity)
+            return;
+        xConvFixed = new int[capacity];
+        yConvFixed = new int[capacity];
+        xGradientFixed = new int[capacity];
+        yGradientFixed = new int[capacity];
+        gradientMagnitude = new int[capacity];
+    }
+
+    /**
+     * Work-stack of the serial hysteresis or parent links of the parallel one
+     *
+     * @return
+     */
+    int[] ensureLinks() {
+        if (links == null || links.length < capacity)
+            links = new int[capacity];
+        return links;
+    }
+
+    /**
+     * Strong flags of the components found by the parallel hysteresis
+     *
+     * @return
+     */
+    boolean[] ensureStrong() {
+        if (strong == null || strong.length < capacity)
+            strong = new boolean[capacity];
+        return strong;
+    }
+
+    /**
+     * Makes sure the histogram and the remap of contrast normalization are allocated, both are
+     * cleared
+     */
+    void ensureContrast() {
+        if (histogram == null) {
+            histogram = new int[256];
+            contrastRemap = new int[256];
+        } else {
+            Arrays.fill(histogram, 0);
+            Arrays.fill(contrastRemap, 0);
+        }
+    }
+
+    /**
+     * Makes sure the fixed point kernels hold kwidth taps
+     *
+     * @param kwidth
+     */
+    void ensureFixedKernels(int kwidth) {
+        if (fixedKernel != null && fixedKernel.length >= kwidth)
+            return;
+        fixedKernel = new int[kwidth];
+        fixedDiffKernel = new int[kwidth];
+    }
+
+    /**
+     * Makes sure there is a slot for the scratch of each band. Called before the bands run, each
+     * band then only touches its own slot.
+     *
+     * @param count number of bands
+     */
+    void ensureBands(int count) {
+        if (bands == null || bands.length < count)
+            bands = bands == null ? new BandBuffers[count] : Arrays.copyOf(bands, count);
+    }
+
+    /**
+     * Row scratch of a band
+     *
+     * @param band
+     * @return
+     */
+    BandBuffers getBand(int band) {
+        if (bands[band] == null)
+            bands[band] = new BandBuffers();
+        return bands[band];
+    }
+
+    /**
+     * Number of pixels the buffers can hold
+     *
+     * @return
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Scratch of the rows a band reads: the ring of luminance rows smoothing reads, a row of
+     * packed source pixels, the offsets of the vertical taps and the histogram counts of the
+     * band. Arrays are kept while they are large enough.
+     */
+    static final class BandBuffers {
+
+        private int[] ring = null;
+        private int[] sourceRow = null;
+        private int[] above = null;
+        private int[] below = null;
+        private int[] counts = null;
+
+        private BandBuffers() {
+        }
+
+        int[] ensureRing(int size) {
+            if (ring == null || ring.length < size)
+                ring = new int[size];
+            return ring;
+        }
+
+        int[] ensureSourceRow(int width) {
+            if (sourceRow == null || sourceRow.length < width)
+                sourceRow = new int[width];
+            return sourceRow;
+        }
+
+        int[] ensureAbove(int kwidth) {
+            if (above == null || above.length < kwidth)
+                above = new int[kwidth];
+            return above;
+        }
+
+        int[] ensureBelow(int kwidth) {
+            if (below == null || below.length < kwidth)
+                below = new int[kwidth];
+            return below;
+        }
+
+        /**
+         * Histogram counts, cleared
+         *
+         * @return
+         */
+        int[] ensureCounts() {
+            if (counts == null)
+                counts = new int[256];
+            else
+                Arrays.fill(counts, 0);
+            return counts;
+        }
+    }
+
+}
@@ -0,0 +1,613 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.imageprocessing;
+
+import android.graphics.Rect;
+import com.engdev.blockdiagramdetector.geometry.Contour;
+import com.engdev.blockdiagramdetector.geometry.Point;
+import com.engdev.blockdiagramdetector.tracer.ContourTracer;
+import com.engdev.blockdiagramdetector.tracer.ContourTracer.TracingResult;
+import com.engdev.blockdiagramdetector.tracer.MooreNeighborTracer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Labels the 8-connected components of the black pixels of an EdgeMap in two passes.
+ * <p/>
+ * The first pass works on 2x2 blocks. The pixels of a block are all neighbours of each other, so a
+ * block belongs to a single component and only four neighbour blocks have to be checked, each
+ * with one mask test. Provisional labels are joined with union-find. The second pass writes the
+ * final label of every pixel and gathers the bounding box, area, raw moments up to the second
+ * order and start pixel of every component.
+ * <p/>
+ * Components are numbered from 1 in the order a column by column scan meets them, the order
+ * tracers find start points in. Contours are only traced when asked for.
+ * With parallelism above one both passes run in horizontal strips and the forests of the strips
+ * are merged along their seams.
+ *
+ * @author Lucas Batista
+ */
+public class ConnectedComponentLabeller {
+
+    // Constants
+    private final static int MIN_STRIP_BLOCK_ROWS = 16;
+
+    // Pixels of a block
+    private final static int TOP_LEFT = 1;
+    private final static int TOP_RIGHT = 2;
+    private final static int BOTTOM_LEFT = 4;
+    private final static int BOTTOM_RIGHT = 8;
+
+    private final EdgeMap map;
+    private final int width;
+    private final int height;
+    private final int blockWidth;
+    private final int blockHeight;
+    private int parallelism = 1;
+    private ForkJoinPool pool = null;
+    private boolean sharedPool = false;
+
+    // Blocks
+    private byte[] masks = null;
+    private int[] parents = null;
+    private int[] blockLabels = null;
+
+    // Result
+    private int[] labels = null;
+    private List<Component> components = null;
+    private TracingResult tracingResult = null;
+
+    // Statistics by label
+    private int[] left = null;
+    private int[] top = null;
+    private int[] right = null;
+    private int[] bottom = null;
+    private long[] area = null;
+    private long[] sumX = null;
+    private long[] sumY = null;
+    private long[] sumXX = null;
+    private long[] sumXY = null;
+    private long[] sumYY = null;
+
+    public ConnectedComponentLabeller(EdgeMap map) {
+        if (map == null)
+            throw new IllegalArgumentException("Map cannot be null.");
+        this.map = map;
+        width = map.getWidth();
+        height = map.getHeight();
+        blockWidth = (width + 1) / 2;
+        blockHeight = (height + 1) / 2;
+    }
+
+    /**
+     * Labels the map
+     *
+     * @return the components in scan order
+     */
+    public List<Component> label() {
+        int blocks = blockWidth * blockHeight;
+        masks = new byte[blocks];
+        parents = new int[blocks];
+        labels = new int[width * height];
+
+        // Provisional labels, strips only join blocks of their own
+        run(Pass.Provisional);
+        int stripRows = getStripRows();
+        if (isParallel())
+            for (int by = stripRows; by < blockHeight; by += stripRows)
+                mergeSeam(by);
+
+        int count = resolveLabels();
+        allocateStatistics(count);
+        run(Pass.Final);
+
+        components = new ArrayList<Component>(count);
+        for (int l = 1; l <= count; l++)
+            components.add(new Component(l, new Rect(left[l], top[l], right[l] + 1, bottom[l] + 1),
+                    area[l], new long[]{sumX[l], sumY[l], sumXX[l], sumXY[l], sumYY[l]}, startOf(l)));
+
+        masks = null;
+        parents = null;
+        blockLabels = null;
+        return components;
+    }
+
+    private void run(Pass pass) {
+        if (!isParallel()) {
+            processBlockRows(pass, 0, blockHeight);
+            return;
+        }
+        getPool().invoke(new StripTask(pass, 0, blockHeight, getStripRows()));
+    }
+
+    private void processBlockRows(Pass pass, int rowFrom, int rowTo) {
+        switch (pass) {
+            case Provisional:
+                labelBlocks(rowFrom, rowTo);
+                break;
+            case Final:
+                labelPixels(rowFrom, rowTo);
+                break;
+        }
+    }
+
+    /**
+     * First pass over the block rows [rowFrom, rowTo). Blocks above rowFrom are left to the merge.
+     */
+    private void labelBlocks(int rowFrom, int rowTo) {
+        for (int by = rowFrom; by < rowTo; by++) {
+            int y = 2 * by;
+            for (int bx = 0; bx < blockWidth; bx++) {
+                int x = 2 * bx;
+                int mask = 0;
+                if (map.isBlack(x, y))
+                    mask |= TOP_LEFT;
+                if (x + 1 < width && map.isBlack(x + 1, y))
+                    mask |= TOP_RIGHT;
+                if (y + 1 < height && map.isBlack(x, y + 1))
+                    mask |= BOTTOM_LEFT;
+                if (x + 1 < width && y + 1 < height && map.isBlack(x + 1, y + 1))
+                    mask |= BOTTOM_RIGHT;
+
+                int block = by * blockWidth + bx;
+                masks[block] = (byte) mask;
+                parents[block] = block;
+                if (mask == 0)
+                    continue;
+
+                if (bx > 0)
+                    joinLeft(block, mask);
+                if (by > rowFrom)
+                    joinAbove(block, bx, mask);
+            }
+        }
+    }
+
+    private void joinLeft(int block, int mask) {
+        if ((masks[block - 1] & (TOP_RIGHT | BOTTOM_RIGHT)) != 0 && (mask & (TOP_LEFT | BOTTOM_LEFT)) != 0)
+            union(block - 1, block);
+    }
+
+    /**
+     * Joins a block to the three blocks above it
+     */
+    private void joinAbove(int block, int bx, int mask) {
+        int above = block - blockWidth;
+        if ((masks[above] & (BOTTOM_LEFT | BOTTOM_RIGHT)) != 0 && (mask & (TOP_LEFT | TOP_RIGHT)) != 0)
+            union(above, block);
+        if (bx > 0 && (masks[above - 1] & BOTTOM_RIGHT) != 0 && (mask & TOP_LEFT) != 0)
+            union(above - 1, block);
+        if (bx < blockWidth - 1 && (masks[above + 1] & BOTTOM_LEFT) != 0 && (mask & TOP_RIGHT) != 0)
+            union(above + 1, block);
+    }
+
+    private void mergeSeam(int by) {
+        for (int bx = 0, block = by * blockWidth; bx < blockWidth; bx++, block++)
+            if (masks[block] != 0)
+                joinAbove(block, bx, masks[block]);
+    }
+
+    private int find(int block) {
+        int root = block;
+        while (parents[root] != root)
+            root = parents[root];
+        while (parents[block] != root) {
+            int next = parents[block];
+            parents[block] = root;
+            block = next;
+        }
+        return root;
+    }
+
+    /**
+     * Roots are always the smallest block, so the forest does not depend on the strips
+     */
+    private void union(int a, int b) {
+        a = find(a);
+        b = find(b);
+        if (a < b)
+            parents[b] = a;
+        else if (b < a)
+            parents[a] = b;
+    }
+
+    /**
+     * Numbers the roots in scan order and gives every block its final label
+     *
+     * @return number of components
+     */
+    private int resolveLabels() {
+        int blocks = masks.length;
+
+        // First pixel of each root in column major order
+        int[] starts = new int[blocks];
+        Arrays.fill(starts, Integer.MAX_VALUE);
+        for (int block = 0; block < blocks; block++) {
+            int mask = masks[block];
+            if (mask == 0)
+                continue;
+            int root = find(block);
+            int start = getStartIndex(block, mask);
+            if (start < starts[root])
+                starts[root] = start;
+        }
+
+        final int[] rootStarts = starts;
+        List<Integer> roots = new ArrayList<Integer>();
+        for (int block = 0; block < blocks; block++)
+            if (masks[block] != 0 && parents[block] == block)
+                roots.add(block);
+        Collections.sort(roots, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return rootStarts[a] < rootStarts[b] ? -1 : (rootStarts[a] == rootStarts[b] ? 0 : 1);
+            }
+        });
+
+        // Reuses the starts for the labels of the roots
+        int[] rootLabels = starts;
+        for (int l = 0; l < roots.size(); l++)
+            rootLabels[roots.get(l)] = l + 1;
+        blockLabels = new int[blocks];
+        for (int block = 0; block < blocks; block++)
+            if (masks[block] != 0)
+                blockLabels[block] = rootLabels[parents[block]];
+        return roots.size();
+    }
+
+    /**
+     * Column major index of the first black pixel of a block
+     */
+    private int getStartIndex(int block, int mask) {
+        int x = 2 * (block % blockWidth);
+        int y = 2 * (block / blockWidth);
+        if ((mask & (TOP_LEFT | BOTTOM_LEFT)) != 0)
+            return x * height + y + ((mask & TOP_LEFT) != 0 ? 0 : 1);
+        return (x + 1) * height + y + ((mask & TOP_RIGHT) != 0 ? 0 : 1);
+    }
+
+    private void allocateStatistics(int count) {
+        left = new int[count + 1];
+        top = new int[count + 1];
+        right = new int[count + 1];
+        bottom = new int[count + 1];
+        area = new long[count + 1];
+        sumX = new long[count + 1];
+        sumY = new long[count + 1];
+        sumXX = new long[count + 1];
+        sumXY = new long[count + 1];
+        sumYY = new long[count + 1];
+        Arrays.fill(left, Integer.MAX_VALUE);
+        Arrays.fill(top, Integer.MAX_VALUE);
+        Arrays.fill(right, -1);
+        Arrays.fill(bottom, -1);
+    }
+
+    /**
+     * Second pass over the pixels of the block rows [rowFrom, rowTo)
+     */
+    private void labelPixels(int rowFrom, int rowTo) {
+        int count = left.length;
+        int[] stripLeft = new int[count];
+        int[] stripTop = new int[count];
+        int[] stripRight = new int[count];
+        int[] stripBottom = new int[count];
+        long[] stripArea = new long[count];
+        long[] stripX = new long[count];
+        long[] stripY = new long[count];
+        long[] stripXX = new long[count];
+        long[] stripXY = new long[count];
+        long[] stripYY = new long[count];
+        Arrays.fill(stripLeft, Integer.MAX_VALUE);
+        Arrays.fill(stripTop, Integer.MAX_VALUE);
+        Arrays.fill(stripRight, -1);
+        Arrays.fill(stripBottom, -1);
+
+        for (int y = 2 * rowFrom, maxY = Math.min(2 * rowTo, height); y < maxY; y++) {
+            int blockRow = (y >> 1) * blockWidth;
+            int bit = (y & 1) == 0 ? TOP_LEFT : BOTTOM_LEFT;
+            for (int x = 0, index = y * width; x < width; x++, index++) {
+                int block = blockRow + (x >> 1);
+                if ((masks[block] & (bit << (x & 1))) == 0)
+                    continue;
+                int l = blockLabels[block];
+                labels[index] = l;
+                if (x < stripLeft[l])
+                    stripLeft[l] = x;
+                if (x > stripRight[l])
+                    stripRight[l] = x;
+                if (y < stripTop[l])
+                    stripTop[l] = y;
+                stripBottom[l] = y;
+                stripArea[l]++;
+                stripX[l] += x;
+                stripY[l] += y;
+                stripXX[l] += (long) x * x;
+                stripXY[l] += (long) x * y;
+                stripYY[l] += (long) y * y;
+            }
+        }
+
+        synchronized (this) {
+            for (int l = 1; l < count; l++) {
+                if (stripArea[l] == 0)
+                    continue;
+                left[l] = Math.min(left[l], stripLeft[l]);
+                top[l] = Math.min(top[l], stripTop[l]);
+                right[l] = Math.max(right[l], stripRight[l]);
+                bottom[l] = Math.max(bottom[l], stripBottom[l]);
+                area[l] += stripArea[l];
+                sumX[l] += stripX[l];
+                sumY[l] += stripY[l];
+                sumXX[l] += stripXX[l];
+                sumXY[l] += stripXY[l];
+                sumYY[l] += stripYY[l];
+            }
+        }
+    }
+
+    /**
+     * Start pixel, the top pixel of the left column of a component
+     */
+    private Point startOf(int label) {
+        int x = left[label];
+        for (int y = top[label]; y <= bottom[label]; y++)
+            if (labels[y * width + x] == label)
+                return new Point(x, y);
+        return null;
+    }
+
+    /**
+     * Traces the outer contour of a component with the MooreNeighborTracer, on a copy of the
+     * component alone with a two pixel margin clipped to the frame. The tracer turns around pixels
+     * next to the component and stops where the frame stops it, and it scans the copy within the
+     * same bounds as the whole map, so the contour matches the first one the tracer finds for the
+     * component on the whole map. The pixels it explores are marked on the map.
+     * A contour that could not be closed is still returned, with NotAbleToContour as the tracing
+     * result. A component lying in the last column or row, which the scan never reaches, has no
+     * contour and null is returned.
+     *
+     * @param component
+     * @return
+     */
+    public Contour traceContour(Component component) {
+        Rect bounds = component.getBounds();
+        int originX = Math.max(bounds.left - 2, 0);
+        int originY = Math.max(bounds.top - 2, 0);
+        BitEdgeMap local = new BitEdgeMap(Math.min(bounds.right + 2, width) - originX,
+                Math.min(bounds.bottom + 2, height) - originY);
+        int blackColor = local.getBlackColor();
+        int label = component.getLabel();
+        for (int y = bounds.top; y < bounds.bottom; y++)
+            for (int x = bounds.left, index = y * width + x; x < bounds.right; x++, index++)
+                if (labels[index] == label)
+                    local.setPixel(x - originX, y - originY, blackColor);
+
+        ContourTracer tracer = new MooreNeighborTracer(local);
+        tracer.setExploredMap(local);
+        tracingResult = tracer.trace();
+        markExplored(local, originX, originY);
+        if (tracingResult == TracingResult.NotAbleToFindStartPoint)
+            return null;
+
+        Contour contour = tracer.getContour();
+        Point start = contour.first();
+        return new Contour(new Point(start.x + originX, start.y + originY), contour.getCodes(),
+                contour.getMarshDirection());
+    }
+
+    /**
+     * Marks the explored pixels of a copy lying at an offset of the map
+     */
+    private void markExplored(BitEdgeMap local, int left, int top) {
+        if (map instanceof BitEdgeMap) {
+            ((BitEdgeMap) map).addExplored(local, left, top);
+            return;
+        }
+        int exploredColor = local.getExploredColor();
+        for (int x = 0; x < local.getWidth(); x++)
+            for (int y = 0; y < local.getHeight(); y++)
+                if (local.isExplored(x, y))
+                    map.setPixel(x + left, y + top, exploredColor);
+    }
+
+    /**
+     * Result of the last contour traced
+     *
+     * @return
+     */
+    public TracingResult getTracingResult() {
+        return tracingResult;
+    }
+
+    /**
+     * Label of every pixel, row major. Zero is the background.
+     *
+     * @return
+     */
+    public int[] getLabels() {
+        return labels;
+    }
+
+    public int getLabel(int x, int y) {
+        return labels[y * width + x];
+    }
+
+    public List<Component> getComponents() {
+        return components;
+    }
+
+    public EdgeMap getMap() {
+        return map;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Number of strips labelled at the same time. The labels do not depend on this value.
+     *
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least one.");
+        if (!sharedPool && pool != null && pool.getParallelism() != parallelism)
+            shutdown();
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Runs the strips on a pool owned by the caller, which is not shut down here. Null goes back
+     * to a pool created by the labeller.
+     *
+     * @param pool
+     */
+    public void setPool(ForkJoinPool pool) {
+        shutdown();
+        this.pool = pool;
+        sharedPool = pool != null;
+    }
+
+    /**
+     * Releases the threads of a pool created by the labeller. A pool set by the caller is kept.
+     */
+    public void shutdown() {
+        if (!sharedPool && pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    private int getStripRows() {
+        return (blockHeight + parallelism - 1) / parallelism;
+    }
+
+    private boolean isParallel() {
+        return parallelism > 1 && getStripRows() >= MIN_STRIP_BLOCK_ROWS;
+    }
+
+    private ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool(parallelism);
+        return pool;
+    }
+
+    private static enum Pass {
+        Provisional,
+        Final
+    }
+
+    /**
+     * A connected component and its statistics
+     */
+    public static final class Component {
+
+        private final int label;
+        private final Rect bounds;
+        private final long area;
+        private final long[] sums;
+        private final Point start;
+
+        private Component(int label, Rect bounds, long area, long[] sums, Point start) {
+            this.label = label;
+            this.bounds = bounds;
+            this.area = area;
+            this.sums = sums;
+            this.start = start;
+        }
+
+        public int getLabel() {
+            return label;
+        }
+
+        /**
+         * Bounding box, right and bottom exclusive
+         *
+         * @return
+         */
+        public Rect getBounds() {
+            return new Rect(bounds);
+        }
+
+        /**
+         * Number of pixels
+         *
+         * @return
+         */
+        public long getArea() {
+            return area;
+        }
+
+        /**
+         * Raw moment m_pq, the sum of x^p * y^q over the pixels, up to the second order
+         *
+         * @param p
+         * @param q
+         * @return
+         */
+        public long getRawMoment(int p, int q) {
+            if (p < 0 || q < 0 || p + q > 2)
+                throw new IllegalArgumentException("Only moments up to the second order are kept.");
+            if (p + q == 0)
+                return area;
+            if (p + q == 1)
+                return p == 1 ? sums[0] : sums[1];
+            return p == 2 ? sums[2] : (q == 2 ? sums[4] : sums[3]);
+        }
+
+        /**
+         * Top pixel of the left column, where a column by column scan meets the component
+         *
+         * @return
+         */
+        public Point getStartPoint() {
+            return new Point(start.x, start.y);
+        }
+
+    }
+
+    private final class StripTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Pass pass;
+        private final int rowFrom;
+        private final int rowTo;
+        private final int stripRows;
+
+        StripTask(Pass pass, int rowFrom, int rowTo, int stripRows) {
+            this.pass = pass;
+            this.rowFrom = rowFrom;
+            this.rowTo = rowTo;
+            this.stripRows = stripRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (rowTo - rowFrom <= stripRows) {
+                processBlockRows(pass, rowFrom, rowTo);
+                return;
+            }
+            int strips = (rowTo - rowFrom + stripRows - 1) / stripRows;
+            int middle = rowFrom + strips / 2 * stripRows;
+            invokeAll(new StripTask(pass, rowFrom, middle, stripRows),
+                    new StripTask(pass, middle, rowTo, stripRows));
+        }
+    }
+
+}
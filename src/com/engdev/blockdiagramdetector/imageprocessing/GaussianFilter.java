@@ -12,9 +12,6 @@ package com.engdev.blockdiagramdetector.imageprocessing;
 import android.graphics.Bitmap;
 import com.engdev.blockdiagramdetector.math.Convolution;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * Imaplements a Gaussian Filter.
  *
@@ -54,18 +51,7 @@ public class GaussianFilter extends Filter {
     }
 
     public static double[] getMatrixGaussianKernel(float sigma, int kernelWidth) {
-        int kernelSize = (int) Math.pow(kernelWidth, 2);
-        double[] kernel = new double[(int) Math.pow(kernelWidth, 2)];
-
-        for (int index = 0; index < kernelSize; index++) {
-            int i = ImageUtility.getRow(index, kernelWidth);
-            int j = ImageUtility.getColumn(index, kernelWidth);
-            int x = (int) (j - Math.floor(kernelWidth / 2));
-            int y = (int) (i - Math.floor(kernelWidth / 2));
-            kernel[index] = gaussian(x, y, sigma);
-        }
-
-        return kernel;
+        return KernelCache.getSharedCache().getMatrixKernel(sigma, kernelWidth).toDoubleArray();
     }
 
     public static double[] getMatrixGaussianKernel() {
@@ -77,26 +63,7 @@ public class GaussianFilter extends Filter {
     }
 
     public static double[] getLinearKernel(float sigma, float threshold) {
-        int kernelWidth = getKernelWidth(sigma, threshold);
-        double[] aKernel = null;
-        List<Float> kernel = new ArrayList<Float>(kernelWidth);
-
-        int kWidth = 0;
-        for (kWidth = 0; kWidth < kernelWidth; kWidth++) {
-            float g = gaussian(kWidth, sigma);
-
-            if (kWidth >= 2 && g <= threshold)
-                break;
-
-            kernel.add(g);
-        }
-
-        aKernel = new double[kWidth];
-
-        for (int i = 0; i < aKernel.length; i++)
-            aKernel[i] = kernel.get(i);
-
-        return aKernel;
+        return KernelCache.getSharedCache().getLinearKernel(sigma, threshold).toDoubleArray();
     }
 
     private void init() {
@@ -132,11 +99,28 @@ public class GaussianFilter extends Filter {
                 pixels = Convolution.convolveImageLinear(pixels, width, height, Kernel);
                 break;
             case Matrix:
-                pixels = Convolution.convolveImage(pixels, width, height, Kernel, kernelWidth, kernelHeight);
+                pixels = Convolution.convolveImageSeparable(pixels, width, height, Kernel, kernelWidth, kernelHeight);
                 break;
         }
     }
 
+    /**
+     * Applies the kernel to a planar image
+     *
+     * @param image
+     * @return a new image with the same format
+     */
+    public PlanarImage apply(PlanarImage image) {
+        switch (kernelType) {
+            case Linear:
+                return Convolution.convolveImageLinear(image, Kernel);
+            case Matrix:
+                return Convolution.convolveImageSeparable(image, Kernel, kernelWidth, kernelHeight);
+            default:
+                return image;
+        }
+    }
+
     // Constants
     public enum KernelType {Matrix, Linear}
 
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.imageprocessing;
+
+import java.util.Arrays;
+
+/**
+ * Immutable Gaussian kernel handed out by the KernelCache.
+ * Linear kernels hold the taps from the centre outwards, matrix kernels hold width x width taps.
+ *
+ * @author Lucas Batista
+ */
+public final class GaussianKernel {
+
+    // Taps, never written after construction
+    final float[] values;
+    final float[] derivative;
+    private final int width;
+
+    GaussianKernel(float[] values, float[] derivative, int width) {
+        this.values = values;
+        this.derivative = derivative;
+        this.width = width;
+    }
+
+    /**
+     * Effective width. For linear kernels it is the number of taps from the centre outwards.
+     *
+     * @return
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public float get(int index) {
+        return values[index];
+    }
+
+    /**
+     * Tap of the derivative kernel. Only Canny kernels have one.
+     *
+     * @param index
+     * @return
+     */
+    public float getDerivative(int index) {
+        if (derivative == null)
+            throw new IllegalStateException("Kernel has no derivative.");
+        return derivative[index];
+    }
+
+    public boolean hasDerivative() {
+        return derivative != null;
+    }
+
+    public float[] toArray() {
+        return Arrays.copyOf(values, values.length);
+    }
+
+    public double[] toDoubleArray() {
+        double[] array = new double[values.length];
+        for (int i = 0; i < array.length; i++)
+            array[i] = values[i];
+        return array;
+    }
+
+}
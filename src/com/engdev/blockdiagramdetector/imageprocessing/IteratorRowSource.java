@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.imageprocessing;
+
+import java.util.Iterator;
+
+/**
+ * Row source backed by an iterator of packed ARGB rows
+ *
+ * @author Lucas Batista
+ */
+public class IteratorRowSource implements RowSource {
+
+    private final Iterator<int[]> rows;
+    private final int width;
+    private final int height;
+    private int next = 0;
+
+    public IteratorRowSource(Iterator<int[]> rows, int width, int height) {
+        if (rows == null)
+            throw new IllegalArgumentException("Rows cannot be null.");
+        if (width < 0 || height < 0)
+            throw new IllegalArgumentException("Size cannot be negative.");
+        this.rows = rows;
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRow(int y, int[] row) {
+        if (y != next)
+            throw new IllegalStateException("Rows must be read in order.");
+        if (!rows.hasNext())
+            throw new IllegalStateException("Iterator ended at row " + y + ".");
+        int[] source = rows.next();
+        if (source.length < width)
+            throw new IllegalStateException("Row " + y + " is shorter than the image.");
+        System.arraycopy(source, 0, row, 0, width);
+        next++;
+    }
+
+}
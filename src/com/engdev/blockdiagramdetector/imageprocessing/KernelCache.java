@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.imageprocessing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread safe cache of the Gaussian kernels used by the filters. It keeps the most recently used
+ * parameter sets so sweeps over thresholds with the same sigma build each kernel once.
+ *
+ * @author Lucas Batista
+ */
+public final class KernelCache {
+
+    // Constants
+    public final static int DEFAULT_CAPACITY = 32;
+    private final static float GAUSSIAN_CUT_OFF = 0.005F;
+
+    private final static KernelCache sharedCache = new KernelCache(DEFAULT_CAPACITY);
+
+    private final LruMap kernels;
+
+    public KernelCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be at least one.");
+        kernels = new LruMap(capacity);
+    }
+
+    /**
+     * Cache shared by the filters
+     *
+     * @return
+     */
+    public static KernelCache getSharedCache() {
+        return sharedCache;
+    }
+
+    /**
+     * Smoothing and derivative kernels of the CannyEdgeDetector
+     *
+     * @param sigma
+     * @param threshold
+     * @return
+     */
+    public GaussianKernel getCannyKernel(float sigma, float threshold) {
+        return get(KernelType.Canny, sigma, Float.floatToIntBits(threshold));
+    }
+
+    /**
+     * Linear kernel of the GaussianFilter
+     *
+     * @param sigma
+     * @param threshold
+     * @return
+     */
+    public GaussianKernel getLinearKernel(float sigma, float threshold) {
+        return get(KernelType.Linear, sigma, Float.floatToIntBits(threshold));
+    }
+
+    /**
+     * Matrix kernel of the GaussianFilter
+     *
+     * @param sigma
+     * @param kernelWidth
+     * @return
+     */
+    public GaussianKernel getMatrixKernel(float sigma, int kernelWidth) {
+        if (kernelWidth < 1)
+            throw new IllegalArgumentException("Kernel width must be positive.");
+        return get(KernelType.Matrix, sigma, kernelWidth);
+    }
+
+    public synchronized int size() {
+        return kernels.size();
+    }
+
+    public synchronized void clear() {
+        kernels.clear();
+    }
+
+    private synchronized GaussianKernel get(KernelType type, float sigma, int parameter) {
+        Key key = new Key(type, Float.floatToIntBits(sigma), parameter);
+        GaussianKernel kernel = kernels.get(key);
+        if (kernel == null) {
+            switch (type) {
+                case Canny:
+                    kernel = createCannyKernel(sigma, Float.intBitsToFloat(parameter));
+                    break;
+                case Linear:
+                    kernel = createLinearKernel(sigma, Float.intBitsToFloat(parameter));
+                    break;
+                case Matrix:
+                    kernel = createMatrixKernel(sigma, parameter);
+                    break;
+            }
+            kernels.put(key, kernel);
+        }
+        return kernel;
+    }
+
+    private static GaussianKernel createCannyKernel(float sigma, float threshold) {
+        int kernelSize = GaussianFilter.getKernelWidth(sigma, threshold);
+        float[] kernel = new float[kernelSize];
+        float[] diffKernel = new float[kernelSize];
+
+        int kwidth = 0;
+        for (kwidth = 0; kwidth < kernelSize; kwidth++) {
+            float g1 = GaussianFilter.gaussian(kwidth, sigma);
+
+            if (g1 <= GAUSSIAN_CUT_OFF && kwidth >= 2)
+                break;
+
+            float g2 = GaussianFilter.gaussian(kwidth - 0.5F, sigma);
+            float g3 = GaussianFilter.gaussian(kwidth + 0.5F, sigma);
+
+            kernel[kwidth] = (g1 + g2 + g3) / 3F;
+            diffKernel[kwidth] = (g3 - g2) / 1F;
+        }
+
+        return new GaussianKernel(kernel, diffKernel, kwidth);
+    }
+
+    private static GaussianKernel createLinearKernel(float sigma, float threshold) {
+        int kernelWidth = GaussianFilter.getKernelWidth(sigma, threshold);
+        float[] kernel = new float[kernelWidth];
+
+        int kWidth = 0;
+        for (kWidth = 0; kWidth < kernelWidth; kWidth++) {
+            float g = GaussianFilter.gaussian(kWidth, sigma);
+
+            if (kWidth >= 2 && g <= threshold)
+                break;
+
+            kernel[kWidth] = g;
+        }
+
+        float[] trimmed = new float[kWidth];
+        System.arraycopy(kernel, 0, trimmed, 0, kWidth);
+        return new GaussianKernel(trimmed, null, kWidth);
+    }
+
+    private static GaussianKernel createMatrixKernel(float sigma, int kernelWidth) {
+        int kernelSize = kernelWidth * kernelWidth;
+        float[] kernel = new float[kernelSize];
+
+        for (int index = 0; index < kernelSize; index++) {
+            int i = ImageUtility.getRow(index, kernelWidth);
+            int j = ImageUtility.getColumn(index, kernelWidth);
+            int x = j - kernelWidth / 2;
+            int y = i - kernelWidth / 2;
+            kernel[index] = GaussianFilter.gaussian(x, y, sigma);
+        }
+
+        return new GaussianKernel(kernel, null, kernelWidth);
+    }
+
+    private static enum KernelType {
+        Canny,
+        Linear,
+        Matrix
+    }
+
+    private static final class Key {
+
+        private final KernelType type;
+        private final int sigmaBits;
+        private final int parameter;
+
+        Key(KernelType type, int sigmaBits, int parameter) {
+            this.type = type;
+            this.sigmaBits = sigmaBits;
+            this.parameter = parameter;
+        }
+
+        @Override
+        public int hashCode() {
+            return (type.ordinal() * 31 + sigmaBits) * 31 + parameter;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return type == other.type && sigmaBits == other.sigmaBits && parameter == other.parameter;
+        }
+    }
+
+    /**
+     * Map in access order that drops the least recently used kernel when full
+     */
+    private static final class LruMap extends LinkedHashMap<Key, GaussianKernel> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        LruMap(int capacity) {
+            super(16, 0.75F, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, GaussianKernel> eldest) {
+            return size() > capacity;
+        }
+    }
+
+}
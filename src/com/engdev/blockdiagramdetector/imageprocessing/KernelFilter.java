@@ -45,7 +45,17 @@ public class KernelFilter extends Filter {
     protected void apply() {
         pixels = new int[width * height];
         fillPixels();
-        pixels = Convolution.convolveImage(pixels, width, height, kernel.getKernel(), kernel.getWidth(), kernel.getHeight());
+        pixels = Convolution.convolveImageSeparable(pixels, width, height, kernel.getKernel(), kernel.getWidth(), kernel.getHeight());
+    }
+
+    /**
+     * Applies the kernel to a planar image
+     *
+     * @param image
+     * @return a new image with the same format
+     */
+    public PlanarImage apply(PlanarImage image) {
+        return Convolution.convolveImageSeparable(image, kernel.getKernel(), kernel.getWidth(), kernel.getHeight());
     }
 
 }
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.imageprocessing;
+
+import android.graphics.Bitmap;
+
+/**
+ * Image stored as one byte plane per channel, or as a single luminance plane.
+ * Filters work on the planes directly and packed ARGB is only used at the Bitmap boundary.
+ *
+ * @author Lucas Batista
+ */
+public final class PlanarImage {
+
+    private final int width;
+    private final int height;
+    private final Format format;
+
+    // Planes, samples are unsigned
+    private final byte[] alpha;
+    private final byte[] red;
+    private final byte[] green;
+    private final byte[] blue;
+    private final byte[] luminance;
+
+    public PlanarImage(int width, int height, Format format) {
+        if (width < 0 || height < 0)
+            throw new IllegalArgumentException("Size cannot be negative.");
+        if (format == null)
+            throw new IllegalArgumentException("Format cannot be null.");
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        int size = width * height;
+        if (format == Format.Argb) {
+            alpha = new byte[size];
+            red = new byte[size];
+            green = new byte[size];
+            blue = new byte[size];
+            luminance = null;
+        } else {
+            alpha = null;
+            red = null;
+            green = null;
+            blue = null;
+            luminance = new byte[size];
+        }
+    }
+
+    /**
+     * Reads a bitmap one row at a time
+     *
+     * @param bitmap
+     * @param format
+     * @return
+     */
+    public static PlanarImage fromBitmap(Bitmap bitmap, Format format) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        PlanarImage image = new PlanarImage(width, height, format);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            image.setRow(y, row, 0);
+        }
+        return image;
+    }
+
+    public static PlanarImage fromPixels(int[] pixels, int width, int height, Format format) {
+        if (pixels.length < width * height)
+            throw new IllegalArgumentException("Pixels do not fill the image.");
+        PlanarImage image = new PlanarImage(width, height, format);
+        for (int y = 0; y < height; y++)
+            image.setRow(y, pixels, y * width);
+        return image;
+    }
+
+    /**
+     * Luminance of an ARGB color, same weights as the CannyEdgeDetector
+     *
+     * @param color
+     * @return
+     */
+    public static int luminance(int color) {
+        float r = ImageUtility.red(color);
+        float g = ImageUtility.green(color);
+        float b = ImageUtility.blue(color);
+        return Math.round(0.299F * r + 0.587F * g + 0.114F * b);
+    }
+
+    /**
+     * Writes a row of packed ARGB pixels
+     *
+     * @param y
+     * @param pixels
+     * @param offset index of the first pixel of the row in pixels
+     */
+    public void setRow(int y, int[] pixels, int offset) {
+        int index = y * width;
+        if (format == Format.Argb) {
+            for (int x = 0; x < width; x++, index++) {
+                int pixel = pixels[offset + x];
+                alpha[index] = (byte) (pixel >>> 24);
+                red[index] = (byte) (pixel >> 16);
+                green[index] = (byte) (pixel >> 8);
+                blue[index] = (byte) pixel;
+            }
+        } else {
+            for (int x = 0; x < width; x++, index++)
+                luminance[index] = (byte) luminance(pixels[offset + x]);
+        }
+    }
+
+    /**
+     * Packed ARGB pixel. Luminance images are returned as opaque gray.
+     *
+     * @param index
+     * @return
+     */
+    public int getPixel(int index) {
+        if (format == Format.Argb)
+            return ((alpha[index] & 0xFF) << 24) | ((red[index] & 0xFF) << 16) | ((green[index] & 0xFF) << 8) | (blue[index] & 0xFF);
+        int l = luminance[index] & 0xFF;
+        return 0xFF000000 | (l << 16) | (l << 8) | l;
+    }
+
+    public int[] toPixels() {
+        int size = width * height;
+        int[] pixels = new int[size];
+        for (int i = 0; i < size; i++)
+            pixels[i] = getPixel(i);
+        return pixels;
+    }
+
+    public Bitmap toBitmap() {
+        return Bitmap.createBitmap(toPixels(), width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Plane of a channel. Luminance images only have the Luminance plane.
+     *
+     * @param plane
+     * @return
+     */
+    public byte[] getPlane(Plane plane) {
+        byte[] samples = null;
+        switch (plane) {
+            case Alpha:
+                samples = alpha;
+                break;
+            case Red:
+                samples = red;
+                break;
+            case Green:
+                samples = green;
+                break;
+            case Blue:
+                samples = blue;
+                break;
+            case Luminance:
+                samples = luminance;
+                break;
+        }
+        if (samples == null)
+            throw new IllegalArgumentException("Image has no " + plane + " plane.");
+        return samples;
+    }
+
+    /**
+     * Color planes, the ones filters operate on
+     *
+     * @return
+     */
+    public Plane[] getColorPlanes() {
+        return format == Format.Argb ? new Plane[]{Plane.Red, Plane.Green, Plane.Blue} : new Plane[]{Plane.Luminance};
+    }
+
+    public int getSample(Plane plane, int index) {
+        return getPlane(plane)[index] & 0xFF;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public static enum Format {
+        Argb,
+        Luminance
+    }
+
+    public static enum Plane {
+        Alpha,
+        Red,
+        Green,
+        Blue,
+        Luminance
+    }
+
+}
@@ -35,31 +35,95 @@ public class PointOperationFilter extends Filter {
     }
 
     private void applyOperation() {
-        pixels = new int[sourceImage.getWidth() * sourceImage.getHeight()];
-        fillPixels();
-        int color = 0;
-        for (int index = 0; index < pixels.length; index++) {
-            color = pixels[index];
-            color = applyOperation(color, operation);
-            pixels[index] = color;
-        }
+        applyTables(new Operation[]{operation});
     }
 
     private void applyOperations() {
+        applyTables(operations);
+    }
+
+    /**
+     * Maps every channel through its lookup table, so each operation is evaluated 256 times per
+     * channel instead of once per pixel
+     */
+    private void applyTables(Operation[] ops) {
         pixels = new int[sourceImage.getWidth() * sourceImage.getHeight()];
         fillPixels();
-        int color = 0;
+        int[][] tables = createTables(ops);
+        int[] alphaTable = tables[0];
+        int[] redTable = tables[1];
+        int[] greenTable = tables[2];
+        int[] blueTable = tables[3];
         for (int index = 0; index < pixels.length; index++) {
-            for (Operation operation : operations) {
-                color = pixels[index];
-                color = applyOperation(color, operation);
-                pixels[index] = color;
+            int color = pixels[index];
+            pixels[index] = ImageUtility.argb(alphaTable[ImageUtility.alpha(color)], redTable[ImageUtility.red(color)],
+                    greenTable[ImageUtility.green(color)], blueTable[ImageUtility.blue(color)]);
+        }
+    }
+
+    /**
+     * Applies the operations to a planar image
+     *
+     * @param image
+     * @return a new image with the same format
+     */
+    public PlanarImage apply(PlanarImage image) {
+        Operation[] ops = operations == null ? new Operation[]{operation} : operations;
+        PlanarImage product = new PlanarImage(image.getWidth(), image.getHeight(), image.getFormat());
+        if (image.getFormat() == PlanarImage.Format.Luminance) {
+            mapPlane(image.getPlane(PlanarImage.Plane.Luminance), createLuminanceTable(ops),
+                    product.getPlane(PlanarImage.Plane.Luminance));
+            return product;
+        }
+        int[][] tables = createTables(ops);
+        mapPlane(image.getPlane(PlanarImage.Plane.Alpha), tables[0], product.getPlane(PlanarImage.Plane.Alpha));
+        mapPlane(image.getPlane(PlanarImage.Plane.Red), tables[1], product.getPlane(PlanarImage.Plane.Red));
+        mapPlane(image.getPlane(PlanarImage.Plane.Green), tables[2], product.getPlane(PlanarImage.Plane.Green));
+        mapPlane(image.getPlane(PlanarImage.Plane.Blue), tables[3], product.getPlane(PlanarImage.Plane.Blue));
+        return product;
+    }
+
+    private void mapPlane(byte[] source, int[] table, byte[] destination) {
+        for (int i = 0; i < source.length; i++)
+            destination[i] = (byte) table[source[i] & 0xFF];
+    }
+
+    /**
+     * Lookup tables of the alpha, red, green and blue channels. Operations treat each channel on its
+     * own, so a channel table is built by running the operations on a color with every channel set
+     * to the same value.
+     */
+    private int[][] createTables(Operation[] ops) {
+        int[][] tables = new int[4][256];
+        for (int value = 0; value < 256; value++) {
+            for (int channel = 0; channel < 4; channel++) {
+                int sample = value;
+                for (Operation op : ops) {
+                    int color = applyOperation(ImageUtility.argb(sample, sample, sample, sample), op);
+                    sample = (color >>> (24 - 8 * channel)) & 0xFF;
+                }
+                tables[channel][value] = sample;
             }
         }
+        return tables;
+    }
+
+    /**
+     * Lookup table of a luminance plane, the luminance of the operations applied to opaque gray
+     */
+    private int[] createLuminanceTable(Operation[] ops) {
+        int[] table = new int[256];
+        for (int value = 0; value < 256; value++) {
+            int color = ImageUtility.argb(255, value, value, value);
+            for (Operation op : ops)
+                color = applyOperation(color, op);
+            table[value] = PlanarImage.luminance(color);
+        }
+        return table;
     }
 
     private int applyOperation(int color, Operation op) {
-        switch (operation) {
+        switch (op) {
             case Multiply:
                 return applyMultiply(color);
             case Addition:
@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.imageprocessing;
+
+/**
+ * Receives the rows of an edge map as the StreamingCannyEdgeDetector finishes them
+ *
+ * @author Lucas Batista
+ */
+public interface RowSink {
+
+    /**
+     * Receives a finished row. Edge pixels are white and the others black, as in EdgeMap.
+     * Rows arrive in increasing order and the array is reused for the next row.
+     *
+     * @param y
+     * @param row
+     */
+    public void writeRow(int y, int[] row);
+
+}
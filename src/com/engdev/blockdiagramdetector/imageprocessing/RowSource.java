@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.imageprocessing;
+
+/**
+ * Supplies an image one row at a time, top to bottom, for the StreamingCannyEdgeDetector
+ *
+ * @author Lucas Batista
+ */
+public interface RowSource {
+
+    public int getWidth();
+
+    public int getHeight();
+
+    /**
+     * Reads a row of packed ARGB pixels. Rows are requested in increasing order.
+     *
+     * @param y
+     * @param row at least getWidth() long
+     */
+    public void readRow(int y, int[] row);
+
+}
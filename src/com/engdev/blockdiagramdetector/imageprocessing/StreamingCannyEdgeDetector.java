@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.imageprocessing;
+
+import java.util.Arrays;
+
+/**
+ * Canny edge detector that pulls rows from a RowSource and pushes finished edge rows to a RowSink.
+ * Every intermediate buffer is a ring of a few rows, so memory grows with the width and the kernel,
+ * not with the height, and images larger than the heap can be processed.
+ * <p/>
+ * Smoothing, gradients and non-maximal suppression give the same values as the float path of the
+ * CannyEdgeDetector. Two differences remain:
+ * rows are read where they are, without the one pixel offset the CannyEdgeDetector applies to
+ * bitmaps, and hysteresis only follows weak chains inside a window of the latest rows. A chain that
+ * reaches a strong pixel only after leaving the window is lost. A window at least as tall as the
+ * image gives the same edges as the CannyEdgeDetector.
+ *
+ * @author Lucas Batista
+ */
+public class StreamingCannyEdgeDetector {
+
+    // Constants
+    public final static int DEFAULT_HYSTERESIS_WINDOW = 64;
+    private final static float MAGNITUDE_SCALE = 100F;
+    private final static float MAGNITUDE_LIMIT = 1000F;
+    private final static int MAGNITUDE_MAX = (int) (MAGNITUDE_SCALE * MAGNITUDE_LIMIT);
+    private final static int EDGE = -1;
+    private final static int BACKGROUND = 0xFF000000;
+
+    // Parameters
+    private float lowThreshold = 2.5F;
+    private float highThreshold = 7.5F;
+    private float sigma = 1.5F;
+    private float gaussianThreshold = 0.1F;
+    private int hysteresisWindow = DEFAULT_HYSTERESIS_WINDOW;
+
+    // Kernels
+    private float[] kernel = null;
+    private float[] diffKernel = null;
+    private int kwidth = 0;
+    private int kernelRows = 0;
+
+    // Image parameters
+    private int width = 0;
+    private int height = 0;
+
+    // Row rings
+    private int[] sourceRow = null;
+    private int[] luminance = null;
+    private float[] xConv = null;
+    private float[] yConv = null;
+    private float[] xGradient = null;
+    private float[] yGradient = null;
+    private int[] magnitude = null;
+    private boolean[] marked = null;
+    private int[] stack = null;
+    private int[] edgeRow = null;
+
+    // Hysteresis
+    private int low = 0;
+    private int high = 0;
+    private int windowRows = 0;
+    private int nextOutputRow = 0;
+
+    /**
+     * Detects the edges of the source, writing every row of the edge map to the sink
+     *
+     * @param source
+     * @param sink
+     */
+    public void detect(RowSource source, RowSink sink) {
+        if (source == null || sink == null)
+            throw new IllegalArgumentException("Source and sink cannot be null.");
+
+        init(source);
+
+        // Each stage lags the previous one by the rows its vertical taps reach below
+        int delay = 2 * (kwidth - 1) + 1;
+        for (int t = 0; t < height + delay; t++) {
+            if (t < height)
+                readRow(source, t);
+
+            int smoothed = t - (kwidth - 1);
+            if (smoothed >= 0 && smoothed < height)
+                smoothRow(smoothed);
+
+            int derived = smoothed - (kwidth - 1);
+            if (derived >= 0 && derived < height)
+                deriveRow(derived);
+
+            int suppressed = derived - 1;
+            if (suppressed >= 0 && suppressed < height) {
+
+                // The row reuses the slot of the oldest one in the window
+                if (suppressed - windowRows >= 0)
+                    emitRow(suppressed - windowRows, sink);
+
+                suppressRow(suppressed);
+                followRow(suppressed);
+            }
+        }
+
+        // Emits what is left in the window
+        while (nextOutputRow < height)
+            emitRow(nextOutputRow, sink);
+    }
+
+    private void init(RowSource source) {
+        width = source.getWidth();
+        height = source.getHeight();
+
+        GaussianKernel gaussianKernel = KernelCache.getSharedCache().getCannyKernel(sigma, gaussianThreshold);
+        kernel = gaussianKernel.values;
+        diffKernel = gaussianKernel.derivative;
+        kwidth = gaussianKernel.getWidth();
+        kernelRows = 2 * kwidth - 1;
+
+        windowRows = Math.max(Math.min(hysteresisWindow, height), 1);
+
+        sourceRow = new int[width];
+        luminance = new int[kernelRows * width];
+        xConv = new float[kernelRows * width];
+        yConv = new float[kernelRows * width];
+        xGradient = new float[3 * width];
+        yGradient = new float[3 * width];
+        magnitude = new int[windowRows * width];
+        marked = new boolean[windowRows * width];
+        stack = new int[windowRows * width];
+        edgeRow = new int[width];
+
+        // Zero magnitudes never become edges
+        low = Math.max(Math.round(lowThreshold * MAGNITUDE_SCALE), 1);
+        high = Math.max(Math.round(highThreshold * MAGNITUDE_SCALE), low);
+        nextOutputRow = 0;
+    }
+
+    private void readRow(RowSource source, int y) {
+        source.readRow(y, sourceRow);
+        int offset = y % kernelRows * width;
+        for (int x = 0; x < width; x++)
+            luminance[offset + x] = PlanarImage.luminance(sourceRow[x]);
+    }
+
+    private void smoothRow(int y) {
+        int row = y % kernelRows * width;
+        Arrays.fill(xConv, row, row + width, 0F);
+        Arrays.fill(yConv, row, row + width, 0F);
+        if (y < kwidth - 1 || y >= height - kwidth)
+            return;
+
+        for (int x = kwidth - 1, maxX = width - kwidth; x < maxX; x++) {
+            int sumX = 0;
+            int sumY = 0;
+            for (int k = 0; k < kwidth; k++) {
+                sumX += kernel[k] * (luminance[row + x - k] + luminance[row + x + k]);
+                sumY += kernel[k] * (luminance[(y - k) % kernelRows * width + x] + luminance[(y + k) % kernelRows * width + x]);
+            }
+            xConv[row + x] = sumX;
+            yConv[row + x] = sumY;
+        }
+    }
+
+    private void deriveRow(int y) {
+        int row = y % 3 * width;
+        int convRow = y % kernelRows * width;
+        Arrays.fill(xGradient, row, row + width, 0F);
+        Arrays.fill(yGradient, row, row + width, 0F);
+        if (y < kwidth - 1 || y >= height - kwidth)
+            return;
+
+        for (int x = kwidth - 1, maxX = width - kwidth; x < maxX; x++) {
+            float sumX = 0;
+            float sumY = 0;
+            for (int k = 0; k < kwidth; k++) {
+                sumX += diffKernel[k] * (yConv[convRow + x - k] - yConv[convRow + x + k]);
+                sumY += diffKernel[k] * (xConv[(y - k) % kernelRows * width + x] - xConv[(y + k) % kernelRows * width + x]);
+            }
+            xGradient[row + x] = sumX;
+            yGradient[row + x] = sumY;
+        }
+    }
+
+    /**
+     * Same non-maximal suppression as the CannyEdgeDetector, writing into the hysteresis window
+     */
+    private void suppressRow(int y) {
+        int row = y % windowRows * width;
+        Arrays.fill(magnitude, row, row + width, 0);
+        Arrays.fill(marked, row, row + width, false);
+        if (y < kwidth || y >= height - kwidth - 1)
+            return;
+
+        int north = (y - 1) % 3 * width;
+        int center = y % 3 * width;
+        int south = (y + 1) % 3 * width;
+        for (int x = kwidth, maxX = width - kwidth - 1; x < maxX; x++) {
+            float xGrad = xGradient[center + x];
+            float yGrad = yGradient[center + x];
+            float gradMag = hypot(xGrad, yGrad);
+
+            float nMag = hypot(xGradient[north + x], yGradient[north + x]);
+            float sMag = hypot(xGradient[south + x], yGradient[south + x]);
+            float wMag = hypot(xGradient[center + x - 1], yGradient[center + x - 1]);
+            float eMag = hypot(xGradient[center + x + 1], yGradient[center + x + 1]);
+            float neMag = hypot(xGradient[north + x + 1], yGradient[north + x + 1]);
+            float seMag = hypot(xGradient[south + x + 1], yGradient[south + x + 1]);
+            float swMag = hypot(xGradient[south + x - 1], yGradient[south + x - 1]);
+            float nwMag = hypot(xGradient[north + x - 1], yGradient[north + x - 1]);
+            float tmp = 0;
+
+            if (xGrad * yGrad <= (float) 0
+                    ? Math.abs(xGrad) >= Math.abs(yGrad)
+                    ? (tmp = Math.abs(xGrad * gradMag)) >= Math.abs(yGrad * neMag - (xGrad + yGrad) * eMag)
+                    && tmp > Math.abs(yGrad * swMag - (xGrad + yGrad) * wMag)
+                    : (tmp = Math.abs(yGrad * gradMag)) >= Math.abs(xGrad * neMag - (yGrad + xGrad) * nMag)
+                    && tmp > Math.abs(xGrad * swMag - (yGrad + xGrad) * sMag)
+                    : Math.abs(xGrad) >= Math.abs(yGrad)
+                    ? (tmp = Math.abs(xGrad * gradMag)) >= Math.abs(yGrad * seMag + (xGrad - yGrad) * eMag)
+                    && tmp > Math.abs(yGrad * nwMag + (xGrad - yGrad) * wMag)
+                    : (tmp = Math.abs(yGrad * gradMag)) >= Math.abs(xGrad * seMag + (yGrad - xGrad) * sMag)
+                    && tmp > Math.abs(xGrad * nwMag + (yGrad - xGrad) * nMag)
+            )
+                magnitude[row + x] = gradMag >= MAGNITUDE_LIMIT ? MAGNITUDE_MAX : (int) (MAGNITUDE_SCALE * gradMag);
+        }
+    }
+
+    /**
+     * Adds a suppressed row to the hysteresis window. Weak chains are followed from the strong
+     * pixels of the row and from the pixels touching edges of the row above.
+     */
+    private void followRow(int y) {
+        int row = y % windowRows * width;
+        int above = (y - 1 + windowRows) % windowRows * width;
+        int oldest = Math.max(y - windowRows + 1, 0);
+        for (int x = 0; x < width; x++) {
+            int index = row + x;
+            if (marked[index] || magnitude[index] < low)
+                continue;
+            boolean seed = magnitude[index] >= high;
+            if (!seed && y > oldest) {
+                for (int dx = Math.max(x - 1, 0), maxX = Math.min(x + 1, width - 1); dx <= maxX && !seed; dx++)
+                    seed = marked[above + dx];
+            }
+            if (seed)
+                followEdges(x, y, oldest);
+        }
+    }
+
+    /**
+     * Marks every weak pixel in the window connected to the given one
+     */
+    private void followEdges(int startX, int startY, int oldest) {
+        int top = 0;
+        marked[startY % windowRows * width + startX] = true;
+        stack[top++] = startY * width + startX;
+
+        while (top > 0) {
+            int curr = stack[--top];
+            int x = curr % width;
+            int y = curr / width;
+            if (x <= 0 || x >= width - 1 || y <= 0 || y >= height - 1)
+                continue;
+            for (int ny = Math.max(y - 1, oldest), maxY = Math.min(y + 1, startY); ny <= maxY; ny++) {
+                int row = ny % windowRows * width;
+                for (int nx = x - 1; nx <= x + 1; nx++) {
+                    int index = row + nx;
+                    if (!marked[index] && magnitude[index] >= low) {
+                        marked[index] = true;
+                        stack[top++] = ny * width + nx;
+                    }
+                }
+            }
+        }
+    }
+
+    private void emitRow(int y, RowSink sink) {
+        int row = y % windowRows * width;
+        for (int x = 0; x < width; x++)
+            edgeRow[x] = marked[row + x] ? EDGE : BACKGROUND;
+        sink.writeRow(y, edgeRow);
+        nextOutputRow = y + 1;
+    }
+
+    private float hypot(float x, float y) {
+        return (float) Math.hypot(x, y);
+    }
+
+    public float getLowThreshold() {
+        return lowThreshold;
+    }
+
+    public void setLowThreshold(float lowThreshold) {
+        if (lowThreshold < 0)
+            throw new IllegalArgumentException("Low Threshold cannot be negative.");
+        this.lowThreshold = lowThreshold;
+    }
+
+    public float getHighThreshold() {
+        return highThreshold;
+    }
+
+    public void setHighThreshold(float highThreshold) {
+        if (highThreshold < 0)
+            throw new IllegalArgumentException("High Threshold cannot be negative.");
+        this.highThreshold = highThreshold;
+    }
+
+    public float getSigma() {
+        return sigma;
+    }
+
+    public void setSigma(float sigma) {
+        this.sigma = sigma;
+    }
+
+    public float getGaussianThreshold() {
+        return gaussianThreshold;
+    }
+
+    public void setGaussianThreshold(float gaussianThreshold) {
+        this.gaussianThreshold = gaussianThreshold;
+    }
+
+    public int getHysteresisWindow() {
+        return hysteresisWindow;
+    }
+
+    /**
+     * Number of rows hysteresis can reach back to follow a weak chain
+     *
+     * @param hysteresisWindow
+     */
+    public void setHysteresisWindow(int hysteresisWindow) {
+        if (hysteresisWindow < 3)
+            throw new IllegalArgumentException("Hysteresis window must hold at least three rows.");
+        this.hysteresisWindow = hysteresisWindow;
+    }
+
+}
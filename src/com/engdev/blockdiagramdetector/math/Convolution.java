@@ -11,6 +11,7 @@ package com.engdev.blockdiagramdetector.math;
 
 
 import com.engdev.blockdiagramdetector.imageprocessing.ImageUtility;
+import com.engdev.blockdiagramdetector.imageprocessing.PlanarImage;
 
 /**
  * Exports methods for math convolution
@@ -26,16 +27,14 @@ public abstract class Convolution {
         int initY = kernelHeight;
         int maxY = matrixHeight - kernelHeight;
 
+        int[] offsets = getTapOffsets(kernel.length, kernelWidth, matrixWidth);
+
         for (int x = initX; x < maxX; x++) {
             for (int y = initY; y < maxY; y++) {
                 int index = y * matrixWidth + x;
                 double sum = 0;
-                for (int k = 0; k < kernel.length; k++) {
-                    int i = ImageUtility.getRow(k, kernelWidth);
-                    int j = ImageUtility.getColumn(k, kernelWidth);
-                    int iIndex = index + j + matrixWidth * i;
-                    sum += kernel[k] * matrix[iIndex];
-                }
+                for (int k = 0; k < kernel.length; k++)
+                    sum += kernel[k] * matrix[index + offsets[k]];
                 product[index] = sum;
             }
         }
@@ -75,6 +74,9 @@ public abstract class Convolution {
         int initY = kernelHeight;
         int maxY = matrixHeight - kernelHeight;
 
+        int[] offsets = getTapOffsets(kernel.length, kernelWidth, matrixWidth);
+        int kernelWeight = getKernelWeight(kernel);
+
         for (int x = initX; x < maxX; x++) {
             for (int y = initY; y < maxY; y++) {
                 int index = y * matrixWidth + x;
@@ -83,18 +85,15 @@ public abstract class Convolution {
                 int r = 0;
                 int g = 0;
                 int b = 0;
-                int weight = 0;
+
+                int weight = kernelWeight;
 
                 for (int k = 0; k < kernel.length; k++) {
-                    int i = ImageUtility.getRow(k, kernelWidth);
-                    int j = ImageUtility.getColumn(k, kernelWidth);
-                    int iIndex = index + j + matrixWidth * i;
-                    int pixel = matrix[iIndex];
+                    int pixel = matrix[index + offsets[k]];
                     a += ImageUtility.alpha(pixel);
                     r += Math.round(kernel[k] * ImageUtility.red(pixel));
                     g += Math.round(kernel[k] * ImageUtility.green(pixel));
                     b += Math.round(kernel[k] * ImageUtility.blue(pixel));
-                    weight += Math.round(kernel[k]);
                 }
 
                 if (weight == 0)
@@ -112,74 +111,124 @@ public abstract class Convolution {
         return product;
     }
 
+    /**
+     * Smooths an image with a symmetric kernel given from the centre outwards, first along rows and
+     * then along columns. The result is normalized by the sum of the taps.
+     *
+     * @param matrix
+     * @param matrixWidth
+     * @param matrixHeight
+     * @param kernel
+     * @return
+     */
     public static int[] convolveImageLinear(int[] matrix, int matrixWidth, int matrixHeight, double[] kernel) {
+        return SeparableConvolution.fromLinearKernel(kernel).convolveImage(matrix, matrixWidth, matrixHeight);
+    }
 
-        int[] product = new int[matrixWidth * matrixHeight];
-        int initX = kernel.length - 1;
-        int maxX = matrixWidth - kernel.length;
-        int initY = kernel.length - 1;
-        int maxY = matrixHeight - kernel.length;
-
-        for (int x = initX; x < maxX; x++) {
-            for (int y = initY; y < maxY; y++) {
+    /**
+     * Same as convolveImage but runs separable kernels as a row and a column pass. Channels are
+     * rounded once instead of once per tap. Kernels of negative weight, which convolveImage does
+     * not normalize, are not factored.
+     *
+     * @param matrix
+     * @param matrixWidth
+     * @param matrixHeight
+     * @param kernel
+     * @param kernelWidth
+     * @param kernelHeight
+     * @return
+     */
+    public static int[] convolveImageSeparable(int[] matrix, int matrixWidth, int matrixHeight, double[] kernel, int kernelWidth, int kernelHeight) {
+        SeparableConvolution separable = getKernelWeight(kernel) < 0 ? null : SeparableConvolution.factor(kernel, kernelWidth, kernelHeight);
+        if (separable == null)
+            return convolveImage(matrix, matrixWidth, matrixHeight, kernel, kernelWidth, kernelHeight);
+        return separable.convolveImage(matrix, matrixWidth, matrixHeight);
+    }
 
-                int index = y * matrixWidth + x;
+    /**
+     * Same as convolveImage on the planes of an image
+     *
+     * @param image
+     * @param kernel
+     * @param kernelWidth
+     * @param kernelHeight
+     * @return a new image with the same format
+     */
+    public static PlanarImage convolveImage(PlanarImage image, double[] kernel, int kernelWidth, int kernelHeight) {
+        int matrixWidth = image.getWidth();
+        int matrixHeight = image.getHeight();
+        PlanarImage product = new PlanarImage(matrixWidth, matrixHeight, image.getFormat());
+        int initX = kernelWidth;
+        int maxX = matrixWidth - kernelWidth;
+        int initY = kernelHeight;
+        int maxY = matrixHeight - kernelHeight;
 
-                int a = 0;
-                int r = 0;
-                int g = 0;
-                int b = 0;
-                int weight = 0;
+        int[] offsets = getTapOffsets(kernel.length, kernelWidth, matrixWidth);
+        int weight = getKernelWeight(kernel);
+        if (weight == 0)
+            weight = 1;
 
-                // X Direction
-                for (int k = 0; k < kernel.length; k++) {
-                    int iIndexX = index + k;
-                    int pixelX = matrix[iIndexX];
-                    a += ImageUtility.alpha(pixelX);
-                    r += Math.round(kernel[k] * ImageUtility.red(pixelX));
-                    g += Math.round(kernel[k] * ImageUtility.green(pixelX));
-                    b += Math.round(kernel[k] * ImageUtility.blue(pixelX));
-                    weight += Math.round(kernel[k]);
-                }
-                if (weight == 0)
-                    weight = 1;
-                if (weight > 0) {
-                    a = a / kernel.length;
-                    r = r / weight;
-                    g = g / weight;
-                    b = b / weight;
+        for (PlanarImage.Plane channel : image.getColorPlanes()) {
+            byte[] source = image.getPlane(channel);
+            byte[] destination = product.getPlane(channel);
+            for (int y = initY; y < maxY; y++) {
+                for (int index = y * matrixWidth + initX, end = y * matrixWidth + maxX; index < end; index++) {
+                    int sum = 0;
+                    for (int k = 0; k < kernel.length; k++)
+                        sum += Math.round(kernel[k] * (source[index + offsets[k]] & 0xFF));
+                    if (weight > 0)
+                        sum = sum / weight;
+                    destination[index] = (byte) MathUtility.clamp(sum, 0, 255);
                 }
+            }
+        }
 
-                product[index] = ImageUtility.clamp(a, r, g, b);
-
-                // Y Direction
-                a = 0;
-                r = 0;
-                g = 0;
-                b = 0;
-                weight = 0;
-                for (int k = 0; k < kernel.length; k++) {
-                    int iIndexY = index + k * matrixWidth;
-                    int pixelY = matrix[iIndexY];
-                    a += ImageUtility.alpha(pixelY);
-                    r += Math.round(kernel[k] * ImageUtility.red(pixelY));
-                    g += Math.round(kernel[k] * ImageUtility.green(pixelY));
-                    b += Math.round(kernel[k] * ImageUtility.blue(pixelY));
-                    weight += Math.round(kernel[k]);
-                }
-                if (weight == 0)
-                    weight = 1;
-                if (weight > 0) {
-                    a = a / kernel.length;
-                    r = r / weight;
-                    g = g / weight;
-                    b = b / weight;
+        if (image.getFormat() == PlanarImage.Format.Argb) {
+            byte[] source = image.getPlane(PlanarImage.Plane.Alpha);
+            byte[] destination = product.getPlane(PlanarImage.Plane.Alpha);
+            for (int y = initY; y < maxY; y++) {
+                for (int index = y * matrixWidth + initX, end = y * matrixWidth + maxX; index < end; index++) {
+                    int sum = 0;
+                    for (int k = 0; k < kernel.length; k++)
+                        sum += source[index + offsets[k]] & 0xFF;
+                    if (weight > 0)
+                        sum = sum / kernel.length;
+                    destination[index] = (byte) MathUtility.clamp(sum, 0, 255);
                 }
-
             }
         }
         return product;
     }
 
+    public static PlanarImage convolveImageLinear(PlanarImage image, double[] kernel) {
+        return SeparableConvolution.fromLinearKernel(kernel).convolveImage(image);
+    }
+
+    public static PlanarImage convolveImageSeparable(PlanarImage image, double[] kernel, int kernelWidth, int kernelHeight) {
+        SeparableConvolution separable = getKernelWeight(kernel) < 0 ? null : SeparableConvolution.factor(kernel, kernelWidth, kernelHeight);
+        if (separable == null)
+            return convolveImage(image, kernel, kernelWidth, kernelHeight);
+        return separable.convolveImage(image);
+    }
+
+    /**
+     * Sum of the rounded taps, the weight convolveImage divides by
+     */
+    private static int getKernelWeight(double[] kernel) {
+        int weight = 0;
+        for (int k = 0; k < kernel.length; k++)
+            weight += Math.round(kernel[k]);
+        return weight;
+    }
+
+    /**
+     * Offsets in the matrix of each tap of a row major kernel anchored at its top left tap
+     */
+    private static int[] getTapOffsets(int kernelSize, int kernelWidth, int matrixWidth) {
+        int[] offsets = new int[kernelSize];
+        for (int k = 0; k < kernelSize; k++)
+            offsets[k] = k / kernelWidth * matrixWidth + k % kernelWidth;
+        return offsets;
+    }
 
 }
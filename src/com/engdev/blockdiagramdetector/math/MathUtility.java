@@ -46,23 +46,13 @@ public abstract class MathUtility {
     }
 
     /**
-     * Get all contained points. Use this with care as it goes through all points each time.
-     * for memory efficiency.
+     * Get all contained points, the points of the bounds PNPoly finds inside the polygon.
+     * Uses ScanlineFill, which does not test each point.
      *
      * @return
      */
     public static List<Point> getContainedPoints(List<Point> vertices, Rect bounds) {
-        List<Point> points = new ArrayList<Point>();
-        Point point = new Point();
-        for (int y = bounds.top; y <= bounds.bottom; y++) {
-            for (int x = bounds.left; x <= bounds.right; x++) {
-                point.x = x;
-                point.y = y;
-                if (PNPoly(vertices, point))
-                    points.add(point.clone());
-            }
-        }
-        return points;
+        return ScanlineFill.fill(vertices, bounds).toPoints();
     }
 
     /**
@@ -388,7 +378,6 @@ public abstract class MathUtility {
      * @return
      */
     public static double[] huMoments(Collection<Point> points, float area) {
-        double[] hu = new double[7];
 
         // Normal central moments
         double nu20 = normalCentralMoment(2, 0, points, area);
@@ -399,6 +388,18 @@ public abstract class MathUtility {
         double nu21 = normalCentralMoment(2, 1, points, area);
         double nu12 = normalCentralMoment(1, 2, points, area);
 
+        return huMoments(nu20, nu02, nu11, nu30, nu03, nu21, nu12);
+    }
+
+    /**
+     * Returns an array with the seven moments of Hu from the normal central moments.
+     *
+     * @return
+     */
+    public static double[] huMoments(double nu20, double nu02, double nu11, double nu30, double nu03,
+                                     double nu21, double nu12) {
+        double[] hu = new double[7];
+
         // Calculates the moments
         hu[0] = Math.abs(nu20 + nu02);
 
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.math;
+
+import com.engdev.blockdiagramdetector.geometry.Point;
+import com.engdev.blockdiagramdetector.geometry.SpanSet;
+
+/**
+ * Sums the raw moments up to the third order of a set of points in a single pass. Central,
+ * normal central and Hu moments, the centroid, the orientation and the eccentricity are then
+ * derived from the sums without going through the points again, with the formulas of MathUtility.
+ * <p/>
+ * Sums are taken relative to an origin near the points, which keeps the derived moments exact
+ * when the points lie far from the origin of the image.
+ *
+ * @author Lucas Batista
+ */
+public final class MomentAccumulator {
+
+    public final static int MAX_ORDER = 3;
+
+    // Binomial coefficients up to the third order
+    private final static int[][] BINOMIAL = {{1}, {1, 1}, {1, 2, 1}, {1, 3, 3, 1}};
+
+    private final int originX;
+    private final int originY;
+    private final double[][] moments = new double[MAX_ORDER + 1][MAX_ORDER + 1];
+    private final double[] powersX = new double[MAX_ORDER + 1];
+    private final double[] powersY = new double[MAX_ORDER + 1];
+
+    public MomentAccumulator() {
+        this(0, 0);
+    }
+
+    /**
+     * @param originX column the sums are taken from, any value near the points
+     * @param originY row the sums are taken from, any value near the points
+     */
+    public MomentAccumulator(int originX, int originY) {
+        this.originX = originX;
+        this.originY = originY;
+    }
+
+    /**
+     * Sum of x^p for x from start to end
+     *
+     * @param p
+     * @param start
+     * @param end
+     * @return
+     */
+    public static double powerSum(int p, int start, int end) {
+        if (p < 0 || p > MAX_ORDER) {
+            double sum = 0;
+            for (int x = start; x <= end; x++)
+                sum += Math.pow(x, p);
+            return sum;
+        }
+        return powerSum(p, end) - powerSum(p, start - 1);
+    }
+
+    /**
+     * Sum of x^p for x from 1 to n, extended to every n as a polynomial
+     */
+    private static double powerSum(int p, double n) {
+        switch (p) {
+            case 0:
+                return n;
+            case 1:
+                return n * (n + 1) / 2;
+            case 2:
+                return n * (n + 1) * (2 * n + 1) / 6;
+            default:
+                return n * n * (n + 1) * (n + 1) / 4;
+        }
+    }
+
+    public void add(int x, int y) {
+        powers(powersX, x - originX);
+        powers(powersY, y - originY);
+        accumulate();
+    }
+
+    public void add(Point point) {
+        add(point.x, point.y);
+    }
+
+    /**
+     * Adds the points of a row from start to end
+     *
+     * @param y
+     * @param start
+     * @param end
+     */
+    public void addSpan(int y, int start, int end) {
+        for (int p = 0; p <= MAX_ORDER; p++)
+            powersX[p] = powerSum(p, start - originX, end - originX);
+        powers(powersY, y - originY);
+        accumulate();
+    }
+
+    public void add(SpanSet spans) {
+        for (int i = 0; i < spans.size(); i++)
+            addSpan(spans.getY(i), spans.getStart(i), spans.getEnd(i));
+    }
+
+    /**
+     * Number of points added
+     *
+     * @return
+     */
+    public double getArea() {
+        return moments[0][0];
+    }
+
+    /**
+     * Raw moment about the origin of the image
+     *
+     * @param p X exponent
+     * @param q Y exponent
+     * @return
+     */
+    public double getRawMoment(int p, int q) {
+        return getMoment(p, q, -originX, -originY);
+    }
+
+    /**
+     * Central moment, the centroid is the first moments over the area given like in MathUtility
+     *
+     * @param p
+     * @param q
+     * @param area
+     * @return
+     */
+    public double getCentralMoment(int p, int q, float area) {
+        float centroidX = (float) getRawMoment(1, 0) / area;
+        float centroidY = (float) getRawMoment(0, 1) / area;
+        return getMoment(p, q, centroidX - originX, centroidY - originY);
+    }
+
+    public double getNormalCentralMoment(int p, int q, float area) {
+        double norm = Math.pow(1 / area, (p + q + 2) / 2);
+        return (float) getCentralMoment(p, q, area) * norm;
+    }
+
+    public double[] getHuMoments(float area) {
+        return MathUtility.huMoments(
+                getNormalCentralMoment(2, 0, area),
+                getNormalCentralMoment(0, 2, area),
+                getNormalCentralMoment(1, 1, area),
+                getNormalCentralMoment(3, 0, area),
+                getNormalCentralMoment(0, 3, area),
+                getNormalCentralMoment(2, 1, area),
+                getNormalCentralMoment(1, 2, area));
+    }
+
+    public Point getCentroid(float area) {
+        float centroidX = (float) getRawMoment(1, 0) / area;
+        float centroidY = (float) getRawMoment(0, 1) / area;
+        return new Point((int) centroidX, (int) centroidY);
+    }
+
+    public float getOrientation(float area) {
+        float mi11 = (float) getCentralMoment(1, 1, area);
+        float mi20 = (float) getCentralMoment(2, 0, area);
+        float mi02 = (float) getCentralMoment(0, 2, area);
+        return (float) (0.5 * Math.atan(2 * mi11 / (mi20 - mi02)));
+    }
+
+    /**
+     * Eign values of the second central moments. Index 0 is the horizontal axis and 1 is the
+     * vertical.
+     *
+     * @param area
+     * @return
+     */
+    public float[] getEignValues(float area) {
+        float[] eignValues = new float[2];
+        float mi11 = (float) getCentralMoment(1, 1, area);
+        float mi20 = (float) getCentralMoment(2, 0, area);
+        float mi02 = (float) getCentralMoment(0, 2, area);
+        eignValues[0] = (float) (mi20 + mi02 + Math.sqrt(Math.pow(mi20 - mi02, 2) + 4 * Math.pow(mi11, 2))) / 2;
+        eignValues[1] = (float) (mi20 + mi02 - Math.sqrt(Math.pow(mi20 - mi02, 2) + 4 * Math.pow(mi11, 2))) / 2;
+        return eignValues;
+    }
+
+    public float getEccentricity(float area) {
+        float[] eignValues = getEignValues(area);
+        return eignValues[0] / eignValues[1];
+    }
+
+    /**
+     * Moment about the point at shiftX, shiftY from the origin of the sums, from the binomial
+     * expansion of the sums
+     */
+    private double getMoment(int p, int q, double shiftX, double shiftY) {
+        if (p < 0 || q < 0 || p + q > MAX_ORDER)
+            throw new IllegalArgumentException("Moment order must be at most " + MAX_ORDER + ".");
+        double moment = 0;
+        for (int i = 0; i <= p; i++) {
+            double termX = BINOMIAL[p][i] * Math.pow(-shiftX, p - i);
+            for (int j = 0; j <= q; j++)
+                moment += termX * BINOMIAL[q][j] * Math.pow(-shiftY, q - j) * moments[i][j];
+        }
+        return moment;
+    }
+
+    private void accumulate() {
+        for (int p = 0; p <= MAX_ORDER; p++)
+            for (int q = 0; p + q <= MAX_ORDER; q++)
+                moments[p][q] += powersX[p] * powersY[q];
+    }
+
+    private static void powers(double[] powers, double value) {
+        powers[0] = 1;
+        for (int p = 1; p <= MAX_ORDER; p++)
+            powers[p] = powers[p - 1] * value;
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.math;
+
+import android.graphics.Rect;
+import com.engdev.blockdiagramdetector.geometry.Point;
+import com.engdev.blockdiagramdetector.geometry.SpanSet;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scanline fill of a polygon giving the same pixels as testing each of them with PNPoly.
+ * <p/>
+ * PNPoly flips its flag for every edge crossing the row of a pixel whose crossing lies right of
+ * the pixel. The crossings of each row are put in an edge table, sorted once and the pixels whose
+ * number of crossings to their right is odd are emitted as spans. The crossings use the integer
+ * arithmetic of PNPoly, so the pixels are exactly the ones it finds. It takes time in the order of
+ * the area plus the perimeter instead of their product.
+ * <p/>
+ * The moments of the filled pixels need no pixel at all. By the discrete Green's theorem the sum
+ * of x^p over a span is the difference of the antiderivative of x^p at its two ends, so each
+ * crossing adds its antiderivative with the sign of its parity in the row and the moments take
+ * time in the order of the perimeter.
+ *
+ * @author Lucas Batista
+ */
+public abstract class ScanlineFill {
+
+    /**
+     * Pixels of the bounds inside a polygon
+     *
+     * @param vertices
+     * @param bounds   inclusive bounds searched
+     * @return
+     */
+    public static SpanSet fill(List<Point> vertices, Rect bounds) {
+        int count = vertices.size();
+        int[] xs = new int[count];
+        int[] ys = new int[count];
+        for (int i = 0; i < count; i++) {
+            Point vertex = vertices.get(i);
+            xs[i] = vertex.x;
+            ys[i] = vertex.y;
+        }
+        return fill(xs, ys, count, bounds);
+    }
+
+    /**
+     * Pixels of the bounds inside a polygon
+     *
+     * @param xs     vertex columns
+     * @param ys     vertex rows
+     * @param count  number of vertices
+     * @param bounds inclusive bounds searched
+     * @return
+     */
+    public static SpanSet fill(int[] xs, int[] ys, int count, Rect bounds) {
+        SpanSet spans = new SpanSet(Math.max(bounds.bottom - bounds.top + 1, 1));
+        scan(xs, ys, count, bounds, spans, null);
+        return spans;
+    }
+
+    /**
+     * Adds the moments of the pixels fill would find, without going through them
+     *
+     * @param xs      vertex columns
+     * @param ys      vertex rows
+     * @param count   number of vertices
+     * @param bounds  inclusive bounds searched
+     * @param moments
+     */
+    public static void accumulate(int[] xs, int[] ys, int count, Rect bounds, MomentAccumulator moments) {
+        scan(xs, ys, count, bounds, null, moments);
+    }
+
+    /**
+     * Builds the edge table and hands the spans of each row to the set or the accumulator
+     */
+    private static void scan(int[] xs, int[] ys, int count, Rect bounds, SpanSet spans,
+                             MomentAccumulator moments) {
+        int top = bounds.top;
+        int rows = bounds.bottom - top + 1;
+        if (rows <= 0 || bounds.right < bounds.left || count == 0)
+            return;
+
+        // Counts the crossings of each row, edges run from vertex j to vertex i like in PNPoly
+        int[] offsets = new int[rows + 1];
+        for (int i = 0, j = count - 1; i < count; j = i++) {
+            int from = Math.max(Math.min(ys[i], ys[j]), top);
+            int to = Math.min(Math.max(ys[i], ys[j]) - 1, bounds.bottom);
+            for (int y = from; y <= to; y++)
+                offsets[y - top + 1]++;
+        }
+        for (int row = 0; row < rows; row++)
+            offsets[row + 1] += offsets[row];
+
+        // Edge table
+        int[] crossings = new int[offsets[rows]];
+        int[] next = Arrays.copyOf(offsets, rows);
+        for (int i = 0, j = count - 1; i < count; j = i++) {
+            int from = Math.max(Math.min(ys[i], ys[j]), top);
+            int to = Math.min(Math.max(ys[i], ys[j]) - 1, bounds.bottom);
+            for (int y = from; y <= to; y++)
+                crossings[next[y - top]++] = (xs[j] - xs[i]) * (y - ys[i]) / (ys[j] - ys[i]) + xs[j];
+        }
+
+        for (int row = 0; row < rows; row++) {
+            int from = offsets[row];
+            int to = offsets[row + 1];
+            if (from == to)
+                continue;
+            Arrays.sort(crossings, from, to);
+            int y = top + row;
+
+            // A pixel left of every crossing sees all of them
+            if (((to - from) & 1) == 1)
+                addSpan(spans, moments, y, bounds.left, crossings[from] - 1, bounds);
+            for (int k = from; k < to - 1; k++) {
+                if (((to - k - 1) & 1) == 1)
+                    addSpan(spans, moments, y, crossings[k], crossings[k + 1] - 1, bounds);
+            }
+        }
+    }
+
+    private static void addSpan(SpanSet spans, MomentAccumulator moments, int y, int start, int end,
+                                Rect bounds) {
+        start = Math.max(start, bounds.left);
+        end = Math.min(end, bounds.right);
+        if (start > end)
+            return;
+        if (spans != null)
+            spans.add(y, start, end);
+        else
+            moments.addSpan(y, start, end);
+    }
+
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.math;
+
+import com.engdev.blockdiagramdetector.imageprocessing.ImageUtility;
+import com.engdev.blockdiagramdetector.imageprocessing.PlanarImage;
+
+import java.util.Arrays;
+
+/**
+ * Convolves images with a kernel that is the product of a row and a column kernel.
+ * A horizontal pass writes into a scratch plane and a vertical pass reads it back, so a
+ * k x k kernel costs 2k taps per pixel instead of k^2.
+ * Colour channels are convolved as separate planes and alpha is the mean of the alpha of the
+ * pixels under the taps, as Convolution.convolveImage averages it. Pixels whose taps would fall
+ * outside the image, or that lie in the frame left around it, are left as zero.
+ *
+ * @author Lucas Batista
+ */
+public class SeparableConvolution {
+
+    // Relative error under which a matrix kernel is taken as separable
+    private final static double SEPARABLE_TOLERANCE = 1e-5;
+
+    private final double[] rowTaps;
+    private final double[] columnTaps;
+    private final int rowOrigin;
+    private final int columnOrigin;
+    private double divisor = 1;
+
+    // Margins left as zero on each side of the image
+    private int frameLeft = 0;
+    private int frameTop = 0;
+    private int frameRight = 0;
+    private int frameBottom = 0;
+
+    /**
+     * @param rowTaps      horizontal taps
+     * @param rowOrigin    tap applied to the output pixel itself
+     * @param columnTaps   vertical taps
+     * @param columnOrigin tap applied to the output pixel itself
+     */
+    public SeparableConvolution(double[] rowTaps, int rowOrigin, double[] columnTaps, int columnOrigin) {
+        if (rowTaps == null || rowTaps.length == 0 || columnTaps == null || columnTaps.length == 0)
+            throw new IllegalArgumentException("Taps cannot be empty.");
+        if (rowOrigin < 0 || rowOrigin >= rowTaps.length || columnOrigin < 0 || columnOrigin >= columnTaps.length)
+            throw new IllegalArgumentException("Origin must be one of the taps.");
+        this.rowTaps = rowTaps.clone();
+        this.columnTaps = columnTaps.clone();
+        this.rowOrigin = rowOrigin;
+        this.columnOrigin = columnOrigin;
+    }
+
+    /**
+     * Creates a normalized symmetric convolution from a linear kernel holding the taps from the
+     * centre outwards, as GaussianFilter.getLinearKernel returns them.
+     *
+     * @param linearKernel
+     * @return
+     */
+    public static SeparableConvolution fromLinearKernel(double[] linearKernel) {
+        if (linearKernel == null || linearKernel.length == 0)
+            throw new IllegalArgumentException("Kernel cannot be empty.");
+        int radius = linearKernel.length - 1;
+        double[] taps = new double[2 * radius + 1];
+        double sum = 0;
+        for (int k = 0; k <= radius; k++) {
+            taps[radius - k] = linearKernel[k];
+            taps[radius + k] = linearKernel[k];
+            sum += k == 0 ? linearKernel[k] : 2 * linearKernel[k];
+        }
+        SeparableConvolution convolution = new SeparableConvolution(taps, radius, taps, radius);
+        convolution.setDivisor(sum * sum);
+        return convolution;
+    }
+
+    /**
+     * Factors a row major kernel into a row and a column kernel. Like Convolution.convolveImage, the
+     * kernel is anchored at its top left tap, divided by the sum of its rounded taps, or by one when
+     * the sum is not positive, and only written from kernelWidth to the width less kernelWidth,
+     * and the same for rows.
+     *
+     * @param kernel
+     * @param kernelWidth
+     * @param kernelHeight
+     * @return the convolution or null if the kernel is not separable
+     */
+    public static SeparableConvolution factor(double[] kernel, int kernelWidth, int kernelHeight) {
+        if (kernel == null || kernelWidth <= 0 || kernelHeight <= 0 || kernel.length != kernelWidth * kernelHeight)
+            throw new IllegalArgumentException("Kernel does not match its size.");
+
+        // Largest tap is the most accurate pivot
+        int pivot = 0;
+        long weight = 0;
+        for (int k = 0; k < kernel.length; k++) {
+            if (Math.abs(kernel[k]) > Math.abs(kernel[pivot]))
+                pivot = k;
+            weight += Math.round(kernel[k]);
+        }
+        double pivotValue = kernel[pivot];
+        if (pivotValue == 0)
+            return null;
+
+        int pivotRow = pivot / kernelWidth;
+        int pivotColumn = pivot % kernelWidth;
+        double[] rowTaps = new double[kernelWidth];
+        double[] columnTaps = new double[kernelHeight];
+        for (int j = 0; j < kernelWidth; j++)
+            rowTaps[j] = kernel[pivotRow * kernelWidth + j];
+        for (int i = 0; i < kernelHeight; i++)
+            columnTaps[i] = kernel[i * kernelWidth + pivotColumn] / pivotValue;
+
+        // Rank one check
+        double tolerance = SEPARABLE_TOLERANCE * Math.abs(pivotValue);
+        for (int i = 0; i < kernelHeight; i++)
+            for (int j = 0; j < kernelWidth; j++)
+                if (Math.abs(kernel[i * kernelWidth + j] - columnTaps[i] * rowTaps[j]) > tolerance)
+                    return null;
+
+        SeparableConvolution convolution = new SeparableConvolution(rowTaps, 0, columnTaps, 0);
+        convolution.setDivisor(weight > 0 ? weight : 1);
+        convolution.setFrame(kernelWidth, kernelHeight, kernelWidth, kernelHeight);
+        return convolution;
+    }
+
+    /**
+     * Convolves an ARGB image
+     *
+     * @param matrix
+     * @param matrixWidth
+     * @param matrixHeight
+     * @return
+     */
+    public int[] convolveImage(int[] matrix, int matrixWidth, int matrixHeight) {
+        int size = matrixWidth * matrixHeight;
+        int[] product = new int[size];
+        int initX = getInitX();
+        int maxX = getMaxX(matrixWidth);
+        int initY = getInitY();
+        int maxY = getMaxY(matrixHeight);
+        if (initX >= maxX || initY >= maxY)
+            return product;
+
+        // Channel planes
+        float[] alpha = new float[size];
+        float[] red = new float[size];
+        float[] green = new float[size];
+        float[] blue = new float[size];
+        for (int i = 0; i < size; i++) {
+            int pixel = matrix[i];
+            alpha[i] = ImageUtility.alpha(pixel);
+            red[i] = ImageUtility.red(pixel);
+            green[i] = ImageUtility.green(pixel);
+            blue[i] = ImageUtility.blue(pixel);
+        }
+
+        float[] scratch = new float[size];
+        sumAlpha(alpha, matrixWidth, matrixHeight, scratch);
+        convolvePlane(red, matrixWidth, matrixHeight, scratch, red);
+        convolvePlane(green, matrixWidth, matrixHeight, scratch, green);
+        convolvePlane(blue, matrixWidth, matrixHeight, scratch, blue);
+
+        int taps = rowTaps.length * columnTaps.length;
+        for (int y = initY; y < maxY; y++) {
+            for (int index = y * matrixWidth + initX, end = y * matrixWidth + maxX; index < end; index++) {
+                product[index] = ImageUtility.clamp((int) alpha[index] / taps,
+                        Math.round(red[index]), Math.round(green[index]), Math.round(blue[index]));
+            }
+        }
+        return product;
+    }
+
+    /**
+     * Convolves the color planes of an image. Alpha is the mean of the alpha under the taps.
+     *
+     * @param image
+     * @return a new image with the same format
+     */
+    public PlanarImage convolveImage(PlanarImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int size = width * height;
+        PlanarImage product = new PlanarImage(width, height, image.getFormat());
+
+        float[] plane = new float[size];
+        float[] scratch = new float[size];
+        for (PlanarImage.Plane channel : image.getColorPlanes()) {
+            byte[] source = image.getPlane(channel);
+            byte[] destination = product.getPlane(channel);
+            for (int i = 0; i < size; i++)
+                plane[i] = source[i] & 0xFF;
+            convolvePlane(plane, width, height, scratch, plane);
+            for (int i = 0; i < size; i++)
+                destination[i] = (byte) MathUtility.clamp(Math.round(plane[i]), 0, 255);
+        }
+
+        if (image.getFormat() == PlanarImage.Format.Argb) {
+            byte[] source = image.getPlane(PlanarImage.Plane.Alpha);
+            byte[] destination = product.getPlane(PlanarImage.Plane.Alpha);
+            for (int i = 0; i < size; i++)
+                plane[i] = source[i] & 0xFF;
+            sumAlpha(plane, width, height, scratch);
+            int taps = rowTaps.length * columnTaps.length;
+            for (int i = 0; i < size; i++)
+                destination[i] = (byte) ((int) plane[i] / taps);
+        }
+        return product;
+    }
+
+    /**
+     * Convolves a single plane. Pixels whose taps would fall outside the plane are set to zero.
+     *
+     * @param plane        source
+     * @param planeWidth
+     * @param planeHeight
+     * @param scratch      horizontal pass, at least the size of the plane
+     * @param product      output, may be the source plane
+     */
+    public void convolvePlane(float[] plane, int planeWidth, int planeHeight, float[] scratch, float[] product) {
+        float[] rowWeights = new float[rowTaps.length];
+        float[] columnWeights = new float[columnTaps.length];
+        for (int t = 0; t < rowWeights.length; t++)
+            rowWeights[t] = (float) rowTaps[t];
+        for (int t = 0; t < columnWeights.length; t++)
+            columnWeights[t] = (float) (columnTaps[t] / divisor);
+        convolvePlane(plane, planeWidth, planeHeight, scratch, product, rowWeights, columnWeights);
+    }
+
+    /**
+     * Sums the alpha under the taps in place. Sums of bytes are exact in floats, so dividing them
+     * by the number of taps truncates like Convolution.convolveImage.
+     */
+    private void sumAlpha(float[] alpha, int planeWidth, int planeHeight, float[] scratch) {
+        float[] rowWeights = new float[rowTaps.length];
+        float[] columnWeights = new float[columnTaps.length];
+        Arrays.fill(rowWeights, 1F);
+        Arrays.fill(columnWeights, 1F);
+        convolvePlane(alpha, planeWidth, planeHeight, scratch, alpha, rowWeights, columnWeights);
+    }
+
+    private void convolvePlane(float[] plane, int planeWidth, int planeHeight, float[] scratch, float[] product,
+                               float[] rowWeights, float[] columnWeights) {
+        int size = planeWidth * planeHeight;
+        if (plane.length < size || scratch.length < size || product.length < size)
+            throw new IllegalArgumentException("Buffers are smaller than the plane.");
+
+        int initX = getInitX();
+        int maxX = getMaxX(planeWidth);
+        int initY = getInitY();
+        int maxY = getMaxY(planeHeight);
+        if (initX >= maxX || initY >= maxY) {
+            Arrays.fill(product, 0, size, 0F);
+            return;
+        }
+
+        // Tap offsets relative to the output pixel
+        int rowCount = rowTaps.length;
+        int columnCount = columnTaps.length;
+        int[] rowOffsets = new int[rowCount];
+        int[] columnOffsets = new int[columnCount];
+        for (int t = 0; t < rowCount; t++)
+            rowOffsets[t] = t - rowOrigin;
+        for (int t = 0; t < columnCount; t++)
+            columnOffsets[t] = (t - columnOrigin) * planeWidth;
+
+        // Horizontal pass over the rows the vertical pass reads
+        for (int y = initY - columnOrigin, lastY = maxY - columnOrigin + columnCount - 1; y < lastY; y++) {
+            int row = y * planeWidth;
+            for (int index = row + initX, end = row + maxX; index < end; index++) {
+                float sum = 0;
+                for (int t = 0; t < rowCount; t++)
+                    sum += rowWeights[t] * plane[index + rowOffsets[t]];
+                scratch[index] = sum;
+            }
+        }
+
+        // Vertical pass, the source is no longer read so the product may overwrite it
+        Arrays.fill(product, 0, initY * planeWidth, 0F);
+        for (int y = initY; y < maxY; y++) {
+            int row = y * planeWidth;
+            Arrays.fill(product, row, row + initX, 0F);
+            for (int index = row + initX, end = row + maxX; index < end; index++) {
+                float sum = 0;
+                for (int t = 0; t < columnCount; t++)
+                    sum += columnWeights[t] * scratch[index + columnOffsets[t]];
+                product[index] = sum;
+            }
+            Arrays.fill(product, row + maxX, row + planeWidth, 0F);
+        }
+        Arrays.fill(product, maxY * planeWidth, size, 0F);
+    }
+
+    private int getInitX() {
+        return Math.max(rowOrigin, frameLeft);
+    }
+
+    private int getMaxX(int width) {
+        return Math.min(width - rowTaps.length + rowOrigin + 1, width - frameRight);
+    }
+
+    private int getInitY() {
+        return Math.max(columnOrigin, frameTop);
+    }
+
+    private int getMaxY(int height) {
+        return Math.min(height - columnTaps.length + columnOrigin + 1, height - frameBottom);
+    }
+
+    /**
+     * Margins of the image left as zero on top of the pixels whose taps fall outside it
+     *
+     * @param left
+     * @param top
+     * @param right
+     * @param bottom
+     */
+    public void setFrame(int left, int top, int right, int bottom) {
+        if (left < 0 || top < 0 || right < 0 || bottom < 0)
+            throw new IllegalArgumentException("Frame cannot be negative.");
+        frameLeft = left;
+        frameTop = top;
+        frameRight = right;
+        frameBottom = bottom;
+    }
+
+    public double getDivisor() {
+        return divisor;
+    }
+
+    /**
+     * Value every output is divided by
+     *
+     * @param divisor
+     */
+    public void setDivisor(double divisor) {
+        if (divisor == 0)
+            throw new IllegalArgumentException("Divisor cannot be zero.");
+        this.divisor = divisor;
+    }
+
+    public int getWidth() {
+        return rowTaps.length;
+    }
+
+    public int getHeight() {
+        return columnTaps.length;
+    }
+
+}
@@ -13,10 +13,9 @@ import android.graphics.Rect;
 import com.engdev.blockdiagramdetector.exceptions.PerceptronException;
 import com.engdev.blockdiagramdetector.geometry.Contour;
 import com.engdev.blockdiagramdetector.geometry.Point;
+import com.engdev.blockdiagramdetector.imageprocessing.BitEdgeMap;
 import com.engdev.blockdiagramdetector.imageprocessing.EdgeMap;
 
-import java.util.List;
-
 /**
  * Abstract class that defines a perceptron
  *
@@ -36,6 +35,7 @@ public abstract class ContourTracer implements Tracer {
     protected Rect bounds = null;
     protected Orientation startOrientation = null;
     protected TracingResult result = null;
+    protected ScanCursor cursor = null;
 
     /**
      * Percepts contour
@@ -71,21 +71,58 @@ public abstract class ContourTracer implements Tracer {
     }
 
     /**
-     * Scans until it finds the first point
+     * Scans column by column until it finds the first point. With a scan cursor over the same
+     * bounds the scan resumes from the start point of the previous tracer.
      *
      * @param bounds
      * @return
      */
     protected Point scan(Rect bounds) {
-        for (int x = bounds.left; x < bounds.right; x++) {
-            for (int y = bounds.top; y < bounds.bottom; y++) {
-                if (map.isBlack(x, y)) {
-                    startOrientation = orientation;
-                    return new Point(x, y);
-                }
-                orientation = Orientation.South;
-            }
+        boolean resume = cursor != null && cursor.covers(bounds);
+        int fromX = resume ? cursor.getX() : bounds.left;
+        int fromY = resume ? cursor.getY() : bounds.top;
+
+        Point point = null;
+        if (map instanceof BitEdgeMap)
+            point = scan((BitEdgeMap) map, bounds, fromX, fromY);
+        else
+            point = scan(map, bounds, fromX, fromY);
+
+        if (point == null) {
+            if (resume)
+                cursor.finish();
+            if (bounds.left < bounds.right)
+                orientation = Orientation.East;
+            return null;
+        }
+        if (resume)
+            cursor.moveTo(point.x, point.y);
+
+        // Orientation the pixel by pixel scan leaves, south within a column and east at its top
+        if (point.y > bounds.top)
+            orientation = Orientation.South;
+        else if (point.x > bounds.left)
             orientation = Orientation.East;
+        startOrientation = orientation;
+        return point;
+    }
+
+    private Point scan(EdgeMap map, Rect bounds, int fromX, int fromY) {
+        for (int x = fromX, y = fromY; x < bounds.right; x++, y = bounds.top)
+            for (; y < bounds.bottom; y++)
+                if (map.isBlack(x, y))
+                    return new Point(x, y);
+        return null;
+    }
+
+    /**
+     * Skips empty words of each column
+     */
+    private Point scan(BitEdgeMap map, Rect bounds, int fromX, int fromY) {
+        for (int x = fromX, y = fromY; x < bounds.right; x++, y = bounds.top) {
+            y = map.nextBlack(x, y, bounds.bottom);
+            if (y >= 0)
+                return new Point(x, y);
         }
         return null;
     }
@@ -311,9 +348,9 @@ public abstract class ContourTracer implements Tracer {
      * @param contour
      */
     protected void cleanExploredPath(Contour contour) {
-        List<Point> points = contour.getContourPoints();
-        for (Point p : points)
-            markNeighbors(p, 1);
+        Contour.PointCursor cursor = contour.cursor();
+        while (cursor.next())
+            markNeighbors(cursor.getX(), cursor.getY(), 1);
     }
 
     /**
@@ -323,18 +360,29 @@ public abstract class ContourTracer implements Tracer {
      * @param offSet
      */
     protected void markNeighbors(Point p, int offSet) {
+        markNeighbors(p.x, p.y, offSet);
+    }
+
+    /**
+     * Mark neighbors with color
+     *
+     * @param x
+     * @param y
+     * @param offSet
+     */
+    protected void markNeighbors(int x, int y, int offSet) {
 
         // Edges
-        markPoint(p.x, p.y + offSet, exploredColor);
-        markPoint(p.x, p.y - offSet, exploredColor);
-        markPoint(p.x + offSet, p.y, exploredColor);
-        markPoint(p.x - offSet, p.y, exploredColor);
+        markPoint(x, y + offSet, exploredColor);
+        markPoint(x, y - offSet, exploredColor);
+        markPoint(x + offSet, y, exploredColor);
+        markPoint(x - offSet, y, exploredColor);
 
         // Vertices
-        markPoint(p.x + offSet, p.y + offSet, exploredColor);
-        markPoint(p.x + offSet, p.y - offSet, exploredColor);
-        markPoint(p.x - offSet, p.y + offSet, exploredColor);
-        markPoint(p.x - offSet, p.y - offSet, exploredColor);
+        markPoint(x + offSet, y + offSet, exploredColor);
+        markPoint(x + offSet, y - offSet, exploredColor);
+        markPoint(x - offSet, y + offSet, exploredColor);
+        markPoint(x - offSet, y - offSet, exploredColor);
 
     }
 
@@ -361,6 +409,23 @@ public abstract class ContourTracer implements Tracer {
         this.exploredMap = exploredMap;
     }
 
+    public Rect getBounds() {
+        return bounds;
+    }
+
+    public ScanCursor getScanCursor() {
+        return cursor;
+    }
+
+    /**
+     * Shares a scan cursor between the tracers run over one explored map
+     *
+     * @param cursor
+     */
+    public void setScanCursor(ScanCursor cursor) {
+        this.cursor = cursor;
+    }
+
     public int getExploredColor() {
         return exploredColor;
     }
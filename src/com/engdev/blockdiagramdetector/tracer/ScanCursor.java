@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.tracer;
+
+import android.graphics.Rect;
+
+/**
+ * Position a start point scan resumes from, shared by the tracers run over one explored map.
+ * Tracers only ever clear black pixels, so every pixel the scan already passed stays white and
+ * the next scan can continue from the last start point instead of the corner of the bounds.
+ *
+ * @author Lucas Batista
+ */
+public class ScanCursor {
+
+    private final Rect bounds;
+    private int x = 0;
+    private int y = 0;
+
+    public ScanCursor(Rect bounds) {
+        if (bounds == null)
+            throw new IllegalArgumentException("Bounds cannot be null.");
+        this.bounds = new Rect(bounds);
+        reset();
+    }
+
+    /**
+     * Moves back to the first pixel of the bounds
+     */
+    public void reset() {
+        x = bounds.left;
+        y = bounds.top;
+    }
+
+    /**
+     * Moves to the pixel the next scan starts at
+     *
+     * @param x
+     * @param y
+     */
+    public void moveTo(int x, int y) {
+        this.x = x;
+        this.y = y;
+    }
+
+    /**
+     * Moves past the last pixel, every later scan finds nothing
+     */
+    public void finish() {
+        x = bounds.right;
+        y = bounds.top;
+    }
+
+    public boolean isFinished() {
+        return x >= bounds.right;
+    }
+
+    public boolean covers(Rect bounds) {
+        return this.bounds.equals(bounds);
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.tracer;
+
+import android.graphics.Rect;
+import com.engdev.blockdiagramdetector.geometry.Contour;
+import com.engdev.blockdiagramdetector.geometry.Contour.MarshDirection;
+import com.engdev.blockdiagramdetector.geometry.Point;
+import com.engdev.blockdiagramdetector.imageprocessing.EdgeMap;
+import com.engdev.blockdiagramdetector.imageprocessing.ImageUtility;
+
+import java.util.Arrays;
+
+/**
+ * Moore Neighbor tracer that keeps its state in primitives and produces the same contours as
+ * the MooreNeighborTracer.
+ * <p/>
+ * The position is a flat index in the order of the map and the orientation an int in the order
+ * of Orientation. Moving back and sweeping the neighbours counterclockwise always visits the same
+ * nine pixels for a given orientation, so the sweep is read from tables of index offsets. Near
+ * the border the moves are clamped like in ContourTracer and the sweep is simulated step by step.
+ * Chain codes go into a growable byte array and the Contour is only built once tracing stops,
+ * so no object is allocated per step.
+ *
+ * @author Lucas Batista
+ */
+public class TableMooreNeighborTracer extends ContourTracer {
+
+    // Forward step of each orientation, in the order of Orientation
+    private final static int[] FORWARD_X = {1, 0, -1, 0};
+    private final static int[] FORWARD_Y = {0, -1, 0, 1};
+
+    // Chain code by (dy + 1) * 3 + (dx + 1)
+    private final static byte[] CHAIN_CODES = {3, 2, 1, 4, 8, 0, 5, 6, 7};
+
+    // Sweep of moveBack and moveCounterclockwise relative to the pixel moved from
+    private final static int SWEEP_CHECKS = 9;
+    private final static int[][] SWEEP_X = new int[4][SWEEP_CHECKS + 1];
+    private final static int[][] SWEEP_Y = new int[4][SWEEP_CHECKS + 1];
+    private final static int[][] SWEEP_ORIENTATION = new int[4][SWEEP_CHECKS + 1];
+    private final static int INITIAL_CAPACITY = 256;
+
+    static {
+        for (int o = 0; o < 4; o++) {
+
+            // Move back
+            int x = -FORWARD_X[o];
+            int y = -FORWARD_Y[o];
+            int orientation = (o + 2) & 3;
+
+            // Checks interleaved with left turns and forward moves, the last entry is where the
+            // sweep ends when no pixel is black
+            for (int k = 0; k <= SWEEP_CHECKS; k++) {
+                SWEEP_X[o][k] = x;
+                SWEEP_Y[o][k] = y;
+                SWEEP_ORIENTATION[o][k] = orientation;
+                if (k == SWEEP_CHECKS)
+                    break;
+                if (isTurn(k))
+                    orientation = (orientation + 1) & 3;
+                x += FORWARD_X[orientation];
+                y += FORWARD_Y[orientation];
+            }
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int[][] sweepOffsets = new int[4][SWEEP_CHECKS + 1];
+
+    // Primitive state
+    private int x = 0;
+    private int y = 0;
+    private int index = 0;
+    private int direction = 0;
+    private int fromX = 0;
+    private int fromY = 0;
+    private byte[] codes = new byte[INITIAL_CAPACITY];
+    private int codeCount = 0;
+
+    public TableMooreNeighborTracer(EdgeMap map, Rect bounds) {
+        this.map = map;
+        this.bounds = bounds;
+        exploredColor = ImageUtility.randomColor();
+        width = map.getWidth();
+        height = map.getHeight();
+        for (int o = 0; o < 4; o++)
+            for (int k = 0; k <= SWEEP_CHECKS; k++)
+                sweepOffsets[o][k] = map.getIndex(SWEEP_X[o][k], SWEEP_Y[o][k]) - map.getIndex(0, 0);
+    }
+
+    public TableMooreNeighborTracer(EdgeMap map) {
+        this(map, new Rect(0, 0, map.getWidth() - 1, map.getHeight() - 1));
+    }
+
+    @Override
+    public TracingResult trace() {
+
+        // If explored map is null create one from map
+        if (exploredMap == null)
+            exploredMap = map.clone();
+
+        // Finds start point
+        startPoint = scan(bounds);
+
+        if (startPoint == null)
+            return TracingResult.NotAbleToFindStartPoint;
+
+        // Starts at the start point with the datum code
+        x = startPoint.x;
+        y = startPoint.y;
+        index = map.getIndex(x, y);
+        direction = startOrientation.ordinal();
+        codeCount = 0;
+        addCode(CHAIN_CODES[4]);
+
+        // Starts the contour
+        boolean closed = contour();
+        contour = new Contour(startPoint, codes, codeCount, MarshDirection.CounterClockwise);
+        currPoint = new Point(x, y);
+        orientation = Orientation.values()[direction];
+        if (!closed)
+            return TracingResult.NotAbleToContour;
+
+        // Sets explored for start point pheromone
+        exploredMap.setPixel(x, y, exploredColor);
+
+        // Clean Neighbor pixels in the contour
+        cleanExploredPath(contour);
+
+        // Change Contour code for initial point
+        contour.getCodes().set(0, getCode(fromX, fromY, startPoint.x, startPoint.y));
+
+        return TracingResult.Successful;
+    }
+
+    @Override
+    protected boolean contour() {
+        int startX = startPoint.x;
+        int startY = startPoint.y;
+        int startDirection = startOrientation.ordinal();
+        int area = map.area();
+
+        while (true) {
+
+            // Saves position
+            fromX = x;
+            fromY = y;
+
+            // Moves back and sweeps counterclockwise
+            if (x > 0 && y > 0 && x < width - 1 && y < height - 1)
+                sweep();
+            else
+                sweepClamped();
+
+            // Successful Stop Criterion
+            if (x == startX && y == startY && direction == startDirection)
+                return true;
+
+            // Unsuccessful Stop Criterion
+            if ((x == fromX && y == fromY) || codeCount == area)
+                return false;
+
+            // Sets explored pheromone
+            exploredMap.setPixel(x, y, exploredColor);
+
+            // Adds to Contour
+            addCode(getCode(fromX, fromY, x, y));
+        }
+    }
+
+    /**
+     * Sweep away from the border, every move stays next to the pixel moved from
+     */
+    private void sweep() {
+        int[] offsets = sweepOffsets[direction];
+        int[] sweepX = SWEEP_X[direction];
+        int[] sweepY = SWEEP_Y[direction];
+        int[] orientations = SWEEP_ORIENTATION[direction];
+        int from = index;
+        int k = 0;
+        while (k < SWEEP_CHECKS && !map.isBlack(map.getPixel(from + offsets[k])))
+            k++;
+        index = from + offsets[k];
+        x = fromX + sweepX[k];
+        y = fromY + sweepY[k];
+        direction = orientations[k];
+    }
+
+    /**
+     * moveBack and moveCounterclockwise with the clamped moves of ContourTracer
+     */
+    private void sweepClamped() {
+        move(-FORWARD_X[direction], -FORWARD_Y[direction]);
+        direction = (direction + 2) & 3;
+        for (int k = 0; k < SWEEP_CHECKS; k++) {
+            if (map.isBlack(map.getPixel(x, y)))
+                break;
+            if (isTurn(k))
+                direction = (direction + 1) & 3;
+            move(FORWARD_X[direction], FORWARD_Y[direction]);
+        }
+        index = map.getIndex(x, y);
+    }
+
+    /**
+     * Whether the sweep turns left after the check k, otherwise it moves forward
+     */
+    private static boolean isTurn(int k) {
+        return k != 2 && k != 4 && k != 6;
+    }
+
+    /**
+     * Moves one pixel unless it would leave the map
+     */
+    private void move(int dx, int dy) {
+        if (dx > 0 && x < width - 1 || dx < 0 && x > 0)
+            x += dx;
+        if (dy > 0 && y < height - 1 || dy < 0 && y > 0)
+            y += dy;
+    }
+
+    private static byte getCode(int fromX, int fromY, int toX, int toY) {
+        int dx = toX > fromX ? 1 : (toX < fromX ? -1 : 0);
+        int dy = toY > fromY ? 1 : (toY < fromY ? -1 : 0);
+        return CHAIN_CODES[(dy + 1) * 3 + dx + 1];
+    }
+
+    private void addCode(byte code) {
+        if (codeCount == codes.length)
+            codes = Arrays.copyOf(codes, 2 * codes.length);
+        codes[codeCount++] = code;
+    }
+
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2013 Lucas Batista.
+ * All rights reserved.
+ *
+ * The software in this package is published under the terms of the BSD
+ * style license a copy of which has been included with this distribution in
+ * the LICENSE.txt file.
+ */
+
+package com.engdev.blockdiagramdetector.tracer;
+
+import android.graphics.Rect;
+import com.engdev.blockdiagramdetector.geometry.Contour;
+import com.engdev.blockdiagramdetector.geometry.Point;
+import com.engdev.blockdiagramdetector.imageprocessing.BitEdgeMap;
+import com.engdev.blockdiagramdetector.imageprocessing.ConnectedComponentLabeller;
+import com.engdev.blockdiagramdetector.imageprocessing.ConnectedComponentLabeller.Component;
+import com.engdev.blockdiagramdetector.imageprocessing.EdgeMap;
+import com.engdev.blockdiagramdetector.tracer.ContourTracer.TracingResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the tracing loop of the BlockDiagramParser over vertical tiles in parallel.
+ * <p/>
+ * A tracer only ever moves over its own 8-connected component and only explores pixels next to
+ * it, so the contours of a component do not depend on the others. The map is labelled, every
+ * component lying inside one tile is copied to the map of that tile and the tiles are traced
+ * concurrently, each with its own scan cursor. Components crossing a seam are traced afterwards
+ * on a map of their own. Each map only covers the bounds of its components and the pixels next
+ * to them, contours are moved back to the frame once traced. Start points only move forward in
+ * a scan, so sorting the traces by start point gives the serial order back, and the explored
+ * pixels of all maps are merged into the explored map.
+ *
+ * @author Lucas Batista
+ */
+public class TiledTracer {
+
+    private final EdgeMap exploredMap;
+    private final int width;
+    private final int height;
+    private int tiles = 1;
+    private ForkJoinPool pool = null;
+    private boolean sharedPool = false;
+
+    // Components by group, one group per tile and one for the seams
+    private int[] labels = null;
+    private List<List<Component>> groups = null;
+    private BitEdgeMap[] maps = null;
+    private Rect[] mapBounds = null;
+    private List<List<Trace>> traces = null;
+
+    /**
+     * @param exploredMap map the serial loop would trace, explored pixels are written back to it
+     */
+    public TiledTracer(EdgeMap exploredMap) {
+        if (exploredMap == null)
+            throw new IllegalArgumentException("Map cannot be null.");
+        this.exploredMap = exploredMap;
+        width = exploredMap.getWidth();
+        height = exploredMap.getHeight();
+    }
+
+    /**
+     * Traces every contour
+     *
+     * @return the traces in the order the serial loop finds them
+     */
+    public List<Trace> trace() {
+        ConnectedComponentLabeller labeller = new ConnectedComponentLabeller(exploredMap);
+        labeller.setParallelism(tiles);
+        if (tiles > 1)
+            labeller.setPool(getPool());
+        List<Component> components = labeller.label();
+        labels = labeller.getLabels();
+
+        // Groups by tile, the last group holds the components crossing a seam
+        int tileWidth = (width + tiles - 1) / tiles;
+        groups = new ArrayList<List<Component>>(tiles + 1);
+        for (int t = 0; t <= tiles; t++)
+            groups.add(new ArrayList<Component>());
+        for (Component component : components) {
+            Rect bounds = component.getBounds();
+            int tile = bounds.left / tileWidth;
+            if ((bounds.right - 1) / tileWidth != tile)
+                tile = tiles;
+            groups.get(tile).add(component);
+        }
+
+        maps = new BitEdgeMap[tiles + 1];
+        mapBounds = new Rect[tiles + 1];
+        traces = new ArrayList<List<Trace>>(tiles + 1);
+        for (int t = 0; t <= tiles; t++)
+            traces.add(null);
+        if (tiles > 1)
+            getPool().invoke(new TileTask(0, tiles));
+        else
+            traceGroup(0, 0);
+
+        // Seams
+        traceGroup(tiles, 0);
+
+        List<Trace> result = new ArrayList<Trace>();
+        for (int t = 0; t <= tiles; t++) {
+            result.addAll(traces.get(t));
+            if (maps[t] != null)
+                mergeExplored(maps[t], mapBounds[t]);
+        }
+        Collections.sort(result, new Comparator<Trace>() {
+            @Override
+            public int compare(Trace a, Trace b) {
+                Point p = a.getContour().first();
+                Point q = b.getContour().first();
+                if (p.x != q.x)
+                    return p.x < q.x ? -1 : 1;
+                return p.y < q.y ? -1 : (p.y == q.y ? 0 : 1);
+            }
+        });
+
+        labels = null;
+        groups = null;
+        maps = null;
+        mapBounds = null;
+        traces = null;
+        return result;
+    }
+
+    /**
+     * Copies the components of a group to a map of their own and runs the tracing loop on it.
+     * The map covers the bounds of the components and the pixels next to them, a tracer never
+     * explores further.
+     *
+     * @param group
+     * @param fromX column the scan starts at
+     */
+    private void traceGroup(int group, int fromX) {
+        List<Component> components = groups.get(group);
+        if (components.isEmpty()) {
+            traces.set(group, new ArrayList<Trace>());
+            return;
+        }
+
+        Rect bounds = new Rect(components.get(0).getBounds());
+        for (Component component : components)
+            bounds.union(component.getBounds());
+        bounds.set(Math.max(bounds.left - 1, 0), Math.max(bounds.top - 1, 0),
+                Math.min(bounds.right + 1, width), Math.min(bounds.bottom + 1, height));
+        int left = bounds.left;
+        int top = bounds.top;
+
+        BitEdgeMap map = new BitEdgeMap(bounds.width(), bounds.height());
+        map.setBlackColor(exploredMap.getBlackColor());
+        int blackColor = map.getBlackColor();
+        for (Component component : components) {
+            Rect componentBounds = component.getBounds();
+            int label = component.getLabel();
+            for (int y = componentBounds.top; y < componentBounds.bottom; y++)
+                for (int x = componentBounds.left, index = y * width + x; x < componentBounds.right; x++, index++)
+                    if (labels[index] == label)
+                        map.setPixel(x - left, y - top, blackColor);
+        }
+
+        List<Trace> groupTraces = new ArrayList<Trace>();
+        ScanCursor cursor = null;
+        while (true) {
+            ContourTracer tracer = new TableMooreNeighborTracer(map);
+            tracer.setExploredMap(map);
+            if (cursor == null) {
+                cursor = new ScanCursor(tracer.getBounds());
+                cursor.moveTo(Math.max(fromX - left, tracer.getBounds().left), tracer.getBounds().top);
+            }
+            tracer.setScanCursor(cursor);
+            TracingResult result = tracer.trace();
+            if (result == TracingResult.NotAbleToFindStartPoint)
+                break;
+            groupTraces.add(new Trace(translate(tracer.getContour(), left, top), result));
+        }
+        maps[group] = map;
+        mapBounds[group] = bounds;
+        traces.set(group, groupTraces);
+    }
+
+    /**
+     * Contour moved from the map of a group back to the frame
+     */
+    private static Contour translate(Contour contour, int dx, int dy) {
+        if (dx == 0 && dy == 0)
+            return contour;
+        int size = contour.size();
+        byte[] codes = new byte[size];
+        for (int i = 0; i < size; i++)
+            codes[i] = contour.getCode(i);
+        Point first = contour.first();
+        return new Contour(new Point(first.x + dx, first.y + dy), codes, size, contour.getMarshDirection());
+    }
+
+    private void mergeExplored(BitEdgeMap map, Rect bounds) {
+        if (exploredMap instanceof BitEdgeMap) {
+            ((BitEdgeMap) exploredMap).addExplored(map, bounds.left, bounds.top);
+            return;
+        }
+        int exploredColor = map.getExploredColor();
+        for (int x = 0; x < map.getWidth(); x++)
+            for (int y = 0; y < map.getHeight(); y++)
+                if (map.isExplored(x, y))
+                    exploredMap.setPixel(x + bounds.left, y + bounds.top, exploredColor);
+    }
+
+    public int getTiles() {
+        return tiles;
+    }
+
+    /**
+     * Number of vertical tiles, traced at the same time. The traces do not depend on this value.
+     *
+     * @param tiles
+     */
+    public void setTiles(int tiles) {
+        if (tiles < 1)
+            throw new IllegalArgumentException("There must be at least one tile.");
+        if (!sharedPool && pool != null && pool.getParallelism() != tiles)
+            shutdown();
+        this.tiles = tiles;
+    }
+
+    /**
+     * Runs the tiles on a pool owned by the caller, which is not shut down here. Null goes back
+     * to a pool created by the tracer.
+     *
+     * @param pool
+     */
+    public void setPool(ForkJoinPool pool) {
+        shutdown();
+        this.pool = pool;
+        sharedPool = pool != null;
+    }
+
+    /**
+     * Releases the threads of a pool created by the tracer. A pool set by the caller is kept.
+     */
+    public void shutdown() {
+        if (!sharedPool && pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    private ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool(tiles);
+        return pool;
+    }
+
+    /**
+     * A traced contour and how tracing ended
+     */
+    public static final class Trace {
+
+        private final Contour contour;
+        private final TracingResult result;
+
+        private Trace(Contour contour, TracingResult result) {
+            this.contour = contour;
+            this.result = result;
+        }
+
+        public Contour getContour() {
+            return contour;
+        }
+
+        public TracingResult getResult() {
+            return result;
+        }
+
+    }
+
+    private final class TileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int tileFrom;
+        private final int tileTo;
+
+        TileTask(int tileFrom, int tileTo) {
+            this.tileFrom = tileFrom;
+            this.tileTo = tileTo;
+        }
+
+        @Override
+        protected void compute() {
+            if (tileTo - tileFrom == 1) {
+                traceGroup(tileFrom, tileFrom * ((width + tiles - 1) / tiles));
+                return;
+            }
+            int middle = (tileFrom + tileTo) / 2;
+            invokeAll(new TileTask(tileFrom, middle), new TileTask(middle, tileTo));
+        }
+    }
+
+}